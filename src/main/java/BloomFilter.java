@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// The keys of one B-tree, the rowids of a table or the first column of an
+// index, folded into a bit array sized for a target false positive rate.
+// A key the filter has never seen is almost always reported absent, so a
+// lookup for it returns without descending the tree; keys that are present
+// are never reported absent. Keys that compare equal hash alike: numbers by
+// their value as a double, text and blobs by their bytes.
+public class BloomFilter {
+    static final String SUFFIX = ".bloom";
+    private static final int MAGIC = 0x424c4f4d; // "BLOM"
+    private static final int FORMAT = 1;
+
+    final long[] bits;
+    final int hashes;
+    final long keys;
+    final double fpp;
+    private long lookups;
+    private long negatives;
+
+    BloomFilter(long[] bits, int hashes, long keys, double fpp) {
+        this.bits = bits;
+        this.hashes = hashes;
+        this.keys = keys;
+        this.fpp = fpp;
+    }
+
+    // hashes of the keys as the tree is walked, the filter is sized once
+    // their number is known
+    static class Keys {
+        long[] hashes = new long[1024];
+        int size;
+
+        void add(long hash) {
+            if (size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, size * 2);
+            }
+            hashes[size++] = hash;
+        }
+    }
+
+    // m = -n ln p / ln² 2 bits and k = m/n ln 2 hash functions
+    static BloomFilter of(Keys keys, double fpp) {
+        if (!(fpp > 0 && fpp < 1)) {
+            throw new IllegalArgumentException("Invalid false positive rate: " + fpp);
+        }
+        long n = Math.max(1, keys.size);
+        long m = Math.max(64, (long) Math.ceil(-n * Math.log(fpp) / (Math.log(2) * Math.log(2))));
+        int k = (int) Math.max(1, Math.round((double) m / n * Math.log(2)));
+        var filter = new BloomFilter(new long[(int) ((m + 63) / 64)], k, keys.size, fpp);
+        for (int i = 0; i < keys.size; ++i) {
+            filter.put(keys.hashes[i]);
+        }
+        return filter;
+    }
+
+    void put(long hash) {
+        long size = bits.length * 64L;
+        long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+        for (int i = 0; i < hashes; ++i) {
+            long bit = Long.remainderUnsigned(hash + i * h2, size);
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(long hash) {
+        lookups++;
+        long size = bits.length * 64L;
+        long h2 = mix(hash ^ 0x9e3779b97f4a7c15L) | 1;
+        for (int i = 0; i < hashes; ++i) {
+            long bit = Long.remainderUnsigned(hash + i * h2, size);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                negatives++;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // -0.0 and 0.0 compare equal, so do an integer and the same real
+    static long hash(double value) {
+        return mix(Double.doubleToLongBits(value == 0 ? 0.0 : value));
+    }
+
+    static long hash(byte[] bytes) {
+        return hash(ByteBuffer.wrap(bytes), 0, bytes.length);
+    }
+
+    // column n of a record, which must not be NULL
+    static long hash(Record record, int n) {
+        int serialType = record.getSerialType(n);
+        if (serialType < 12) {
+            return hash(((Number) record.getValue(n)).doubleValue());
+        }
+        return hash(record.getPayload(), record.getValueOffset(n), record.getValueLength(n));
+    }
+
+    private static long hash(ByteBuffer buffer, int offset, int length) {
+        long h = 0xcbf29ce484222325L ^ length;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            h = Long.rotateLeft(h ^ mix(buffer.getLong(offset + i)), 27) * 0x9e3779b97f4a7c15L;
+        }
+        long tail = 0;
+        for (; i < length; ++i) {
+            tail = (tail << 8) | (buffer.get(offset + i) & 0xff);
+        }
+        return mix(h ^ mix(tail));
+    }
+
+    // MurmurHash3's 64-bit finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    // filters by the root page of their B-tree, empty when there is no
+    // sidecar or it belongs to another version of the data
+    static Map<Integer, BloomFilter> read(Path path, DB.DataVersion current, int pageSize)
+            throws IOException {
+        var filters = Sidecar.read(path, MAGIC, FORMAT, current, pageSize, in -> {
+            var read = new HashMap<Integer, BloomFilter>();
+            int count = in.readInt();
+            for (int f = 0; f < count; ++f) {
+                int rootPage = in.readInt();
+                int hashes = in.readInt();
+                long keys = in.readLong();
+                double fpp = in.readDouble();
+                long[] bits = new long[in.readInt()];
+                for (int i = 0; i < bits.length; ++i) {
+                    bits[i] = in.readLong();
+                }
+                read.put(rootPage, new BloomFilter(bits, hashes, keys, fpp));
+            }
+            return read;
+        });
+        return filters == null ? new HashMap<>() : filters;
+    }
+
+    static void write(Path path, DB.DataVersion version, int pageSize,
+                      Map<Integer, BloomFilter> filters) throws IOException {
+        Sidecar.write(path, MAGIC, FORMAT, version, pageSize, out -> {
+            out.writeInt(filters.size());
+            for (var entry : filters.entrySet()) {
+                var filter = entry.getValue();
+                out.writeInt(entry.getKey());
+                out.writeInt(filter.hashes);
+                out.writeLong(filter.keys);
+                out.writeDouble(filter.fpp);
+                out.writeInt(filter.bits.length);
+                for (long word : filter.bits) {
+                    out.writeLong(word);
+                }
+            }
+        });
+    }
+
+    public long getKeys() { return keys; }
+    public long getBits() { return bits.length * 64L; }
+    public int getHashes() { return hashes; }
+    public double getFpp() { return fpp; }
+    public long getLookups() { return lookups; }
+    public long getNegatives() { return negatives; }
+}
@@ -2,75 +2,131 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.List;
 public class BtreePage {
     BtreePageHeader btreePageHeader;
-    short[] cellPointerArray;
-    byte[] pageContents;
+    // offsets are unsigned, on 64 KiB pages they pass 32767
+    int[] cellPointerArray;
+    // the page image, read with absolute positions; cells and records read
+    // from the page are slices of it
+    ByteBuffer contents;
     Cell[] cellArray;
     Record[] records;
-    public BtreePage(BtreePageHeader pageHeader, short[] cellPointerArray,
-                     byte[] pageContents) {
+    // a pooled buffer goes back to its pool once the last reference is
+    // released, pages that did not come from a pool are left to the GC
+    private PagePool pool;
+    private int references = 1;
+    public BtreePage(BtreePageHeader pageHeader, int[] cellPointerArray,
+                     ByteBuffer contents) {
         this.btreePageHeader = pageHeader;
         this.cellPointerArray = cellPointerArray;
-        this.pageContents = pageContents;
+        this.contents = contents;
     }
     public BtreePageHeader getBtreePageHeader() { return btreePageHeader; }
     public void setBtreePageHeader(BtreePageHeader btreePageHeader) {
         this.btreePageHeader = btreePageHeader;
     }
-    public short[] getCellPointerArray() { return cellPointerArray; }
-    public void setCellPointerArray(short[] cellPointerArray) {
+    public int[] getCellPointerArray() { return cellPointerArray; }
+    public void setCellPointerArray(int[] cellPointerArray) {
         this.cellPointerArray = cellPointerArray;
     }
-    public byte[] getPageContents() { return pageContents; }
-    public void setPageContents(byte[] pageContents) {
-        this.pageContents = pageContents;
+    // a view of the page with a position of its own
+    public ByteBuffer buffer() {
+        return contents.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    public BtreePage retain() {
+        references++;
+        return this;
+    }
+
+    // anything read from the page, cells and records included, is invalid
+    // once the last reference is gone
+    public void release() {
+        if (--references == 0 && pool != null) {
+            pool.release(contents);
+            contents = null;
+            cellArray = null;
+            records = null;
+        }
     }
 
     public static BtreePage readPage(RandomAccessFile file, int pageSize, int pageNumber) throws IOException {
         byte[] pageContents = new byte[pageSize];
-        int pageOffset = (pageNumber - 1) * pageSize;
+        long pageOffset = (long) (pageNumber - 1) * pageSize;
         file.seek(pageOffset);
         int filesRead = file.read(pageContents);
 
         if (filesRead != pageSize) {
             throw new IOException("Failed to read the entire page. Expected: " + pageSize + " bytes, but read: " + filesRead + " bytes.");
         }
+        QueryStats.pageRead(pageNumber, pageSize);
+        return fromContents(pageContents, pageNumber);
+    }
+
+    // reads into a buffer from the pool with a positional read, which works
+    // for direct buffers as well
+    public static BtreePage readPage(FileChannel channel, PagePool pool, int pageNumber) throws IOException {
+        ByteBuffer contents = pool.acquire();
+        long pageOffset = (long) (pageNumber - 1) * pool.pageSize;
+        try {
+            while (contents.hasRemaining()) {
+                if (channel.read(contents, pageOffset + contents.position()) < 0) {
+                    throw new IOException("Failed to read the entire page. Expected: " + pool.pageSize +
+                            " bytes, but read: " + contents.position() + " bytes.");
+                }
+            }
+        } catch (IOException e) {
+            pool.release(contents);
+            throw e;
+        }
+        QueryStats.pageRead(pageNumber, pool.pageSize);
+        var page = fromContents(contents.clear(), pageNumber);
+        page.pool = pool;
+        return page;
+    }
+
+    public static BtreePage fromContents(byte[] pageContents, int pageNumber) {
+        return fromContents(ByteBuffer.wrap(pageContents), pageNumber);
+    }
 
-        ByteBuffer pageBuffer = ByteBuffer.wrap(pageContents).order(ByteOrder.BIG_ENDIAN);
+    public static BtreePage fromContents(ByteBuffer contents, int pageNumber) {
+        ByteBuffer pageBuffer = contents.duplicate().order(ByteOrder.BIG_ENDIAN);
         if (pageNumber == 1) { // skip db header
             pageBuffer.position(100);
         }
 
         BtreePageHeader header = BtreePageHeader.getHeader(pageBuffer);
-        short[] cellPointerArray = new short[header.cellCounts];
+        int[] cellPointerArray = new int[header.cellCounts];
         for (int i = 0; i < header.cellCounts; ++i) {
-            cellPointerArray[i] = pageBuffer.getShort();
+            cellPointerArray[i] = pageBuffer.getShort() & 0xFFFF;
         }
 
-        return new BtreePage(header, cellPointerArray, pageContents);
+        return new BtreePage(header, cellPointerArray, contents);
     }
 
 
 
     public void popCells() {
+        popCells(TextDecoder.UTF_8);
+    }
+
+    public void popCells(TextDecoder textDecoder) {
             this.cellArray = new Cell[this.cellPointerArray.length];
             if (this.btreePageHeader.pageType != 0x05) {
                 this.records = new Record[this.cellPointerArray.length];
             }
-            ByteBuffer pageBuffer =
-                    ByteBuffer.wrap(this.pageContents).order(ByteOrder.BIG_ENDIAN);
+            ByteBuffer pageBuffer = buffer();
             int i = 0;
             for (var cellPointer : cellPointerArray) {
                 pageBuffer.position(cellPointer);
                 var cell = Cell.readCell(pageBuffer, this.btreePageHeader.pageType);
                 cellArray[i] = cell;
                 if (this.btreePageHeader.pageType != 0x05) {
-                    records[i] = Record.readRecord(
-                            ByteBuffer.wrap(cell.payload).order(ByteOrder.BIG_ENDIAN));
+                    records[i] = Record.readRecord(cell.payloadBuffer(), textDecoder);
                 }
                 i++;
             }
         }
-    }
\ No newline at end of file
+    }
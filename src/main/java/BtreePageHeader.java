@@ -32,6 +32,20 @@ public class BtreePageHeader {
                 startOfCellContentArea, numberOfFragmentedBytes,
                 rightMostPointer);
     }
+    // mirror of getHeader, interior pages get the right most pointer
+    void write(ByteBuffer page) {
+        page.put(pageType);
+        page.putShort(freeBlocks);
+        page.putShort(cellCounts);
+        page.putShort(getStartOfCellContentArea);
+        page.put(numberOfFragmentedFreeBytes);
+        if (pageType == 0x02 || pageType == 0x05) {
+            page.putInt(rightMostPointer);
+        }
+    }
+    static int size(byte pageType) {
+        return pageType == 0x02 || pageType == 0x05 ? 12 : 8;
+    }
     public byte getPageType() { return pageType; }
     public void setPageType(byte pageType) { this.pageType = pageType; }
     public short getFreeBlocks() { return freeBlocks; }
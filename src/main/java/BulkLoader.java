@@ -0,0 +1,260 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+// Writes a new database holding one table from rows that arrive in rowid
+// order. Leaves are packed to the fill factor and streamed to disk as they
+// fill up, then each interior level is built from the (page, max rowid)
+// pairs of the level below until a single root is left. Page 1 is written
+// last since it has to name the root page. The file is built under a
+// temporary name next to the target and linked into place once complete,
+// which fails rather than replace a database created in the meantime.
+public class BulkLoader {
+    static final int DEFAULT_PAGE_SIZE = 4096;
+    static final double DEFAULT_FILL_FACTOR = 0.9;
+    static final int SQLITE_VERSION_NUMBER = 3040001;
+    // SQLite never stores data on the page that holds the byte at 1 GiB
+    static final long PENDING_BYTE = 0x40000000L;
+
+    final String databaseFilePath;
+    final int pageSize;
+    final double fillFactor;
+    private OutputStream out;
+    private int nextPageNumber;
+    // where the pages go until the load has succeeded
+    private Path buildPath;
+
+    public BulkLoader(String databaseFilePath) {
+        this(databaseFilePath, DEFAULT_PAGE_SIZE, DEFAULT_FILL_FACTOR);
+    }
+
+    public BulkLoader(String databaseFilePath, int pageSize, double fillFactor) {
+        if (pageSize < 512 || pageSize > 65536 || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException("Invalid page size: " + pageSize);
+        }
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new IllegalArgumentException("Invalid fill factor: " + fillFactor);
+        }
+        this.databaseFilePath = databaseFilePath;
+        this.pageSize = pageSize;
+        this.fillFactor = fillFactor;
+    }
+
+    // (page number, largest key below it) for one level of the tree
+    static class Level {
+        int[] pages = new int[256];
+        long[] keys = new long[256];
+        int size;
+
+        void add(int page, long key) {
+            if (size == pages.length) {
+                pages = Arrays.copyOf(pages, size * 2);
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            pages[size] = page;
+            keys[size++] = key;
+        }
+    }
+
+    // an INTEGER PRIMARY KEY column supplies the rowid and is stored as NULL
+    // in the record, like SQLite does; otherwise rowids are 1, 2, 3...
+    public long load(String tableName, String createTableSql, Iterator<Object[]> rows)
+            throws IOException {
+        var columns = Schema.parseColumns(createTableSql);
+        var target = Path.of(databaseFilePath).toAbsolutePath();
+        if (Files.exists(target)) {
+            throw new FileAlreadyExistsException(databaseFilePath, null,
+                    "the import writes a new database and will not replace an existing one");
+        }
+        // created with the default permissions, unlike Files.createTempFile
+        buildPath = Files.createFile(target.resolveSibling(target.getFileName() + "-" +
+                ProcessHandle.current().pid() + "-" + System.nanoTime() + ".tmp"));
+        try {
+            long rowCount = writeTable(tableName, createTableSql, columns, rows);
+            setDatabasePermissions(buildPath);
+            Files.createLink(target, buildPath);
+            return rowCount;
+        } finally {
+            Files.deleteIfExists(buildPath);
+        }
+    }
+
+    // 0644 less the umask, as sqlite3 creates databases
+    private static void setDatabasePermissions(Path path) throws IOException {
+        try {
+            var permissions = Files.getPosixFilePermissions(path);
+            permissions.retainAll(PosixFilePermissions.fromString("rw-r--r--"));
+            Files.setPosixFilePermissions(path, permissions);
+        } catch (UnsupportedOperationException e) {
+            // no POSIX permissions on this file system
+        }
+    }
+
+    private long writeTable(String tableName, String createTableSql, List<Schema.Column> columns,
+                            Iterator<Object[]> rows) throws IOException {
+        int pkColumn = -1;
+        for (var column : columns) {
+            if (column.isPK()) {
+                pkColumn = column.index();
+            }
+        }
+        int maxLocal = Cell.maxLocalPayload(pageSize, (byte) 0x0d);
+        long rowCount = 0;
+        long lastRowId = 0;
+        int rootPage;
+        try (var stream = new BufferedOutputStream(
+                Files.newOutputStream(buildPath), 1 << 20)) {
+            out = stream;
+            // page 1 is rewritten at the end
+            out.write(new byte[pageSize]);
+            nextPageNumber = 2;
+            var leaves = new Level();
+            var leaf = new PageBuilder(pageSize, fillFactor);
+            leaf.reset((byte) 0x0d);
+            while (rows.hasNext()) {
+                Object[] row = rows.next();
+                if (row.length != columns.size()) {
+                    throw new IllegalArgumentException("Expected " + columns.size() +
+                            " values but got " + row.length + " in row " + (rowCount + 1));
+                }
+                long rowId = lastRowId + 1;
+                if (pkColumn >= 0 && row[pkColumn] != null) {
+                    rowId = ((Number) row[pkColumn]).longValue();
+                    if (rowCount > 0 && rowId <= lastRowId) {
+                        throw new IllegalArgumentException("Rows are not sorted by rowid at " + rowId);
+                    }
+                    row = row.clone();
+                    row[pkColumn] = null;
+                }
+                byte[] payload = Record.encode(row, StandardCharsets.UTF_8);
+                if (payload.length > maxLocal) {
+                    throw new IllegalArgumentException("Row " + rowId + " needs overflow pages, which are not supported");
+                }
+                var cell = new Cell((byte) 0x0d, payload.length, rowId, payload);
+                if (!leaf.fits(Cell.sizeOf(cell))) {
+                    leaves.add(writePage(leaf.finish()), lastRowId);
+                    leaf.reset((byte) 0x0d);
+                }
+                leaf.addCell(cell);
+                lastRowId = rowId;
+                rowCount++;
+            }
+            leaves.add(writePage(leaf.finish()), lastRowId);
+            rootPage = buildInteriorLevels(leaves);
+        }
+        writeFirstPage(tableName, createTableSql, rootPage);
+        return rowCount;
+    }
+
+    private int buildInteriorLevels(Level children) throws IOException {
+        var page = new PageBuilder(pageSize, fillFactor);
+        while (children.size > 1) {
+            var parents = new Level();
+            int[] groupEnds = groupChildren(children);
+            int start = 0;
+            for (int end : groupEnds) {
+                page.reset((byte) 0x05);
+                for (int i = start; i < end; ++i) {
+                    page.addCell(new Cell((byte) 0x05, children.pages[i], children.keys[i]));
+                }
+                page.setRightMostPointer(children.pages[end]);
+                parents.add(writePage(page.finish()), children.keys[end]);
+                start = end + 1;
+            }
+            children = parents;
+        }
+        return children.pages[0];
+    }
+
+    // splits a level into runs of children per interior page, the last
+    // child of a run becomes the right most pointer; a run is never left
+    // with a single child since that page would have no cells
+    private int[] groupChildren(Level children) {
+        int header = BtreePageHeader.size((byte) 0x05);
+        int[] ends = new int[16];
+        int groups = 0;
+        int start = 0;
+        while (start < children.size) {
+            int used = header;
+            int end = start;
+            while (end + 1 < children.size) {
+                int size = 2 + 4 + VarInt.sizeOf(children.keys[end]);
+                if (end > start && used + size > pageSize * fillFactor) {
+                    break;
+                }
+                used += size;
+                end++;
+            }
+            if (groups == ends.length) {
+                ends = Arrays.copyOf(ends, groups * 2);
+            }
+            ends[groups++] = end;
+            start = end + 1;
+        }
+        if (groups > 1 && ends[groups - 1] == ends[groups - 2] + 1) {
+            ends[groups - 2]--;
+        }
+        return Arrays.copyOf(ends, groups);
+    }
+
+    private int writePage(byte[] page) throws IOException {
+        if (nextPageNumber == PENDING_BYTE / pageSize + 1) {
+            out.write(new byte[pageSize]);
+            nextPageNumber++;
+        }
+        out.write(page);
+        return nextPageNumber++;
+    }
+
+    private void writeFirstPage(String tableName, String createTableSql, int rootPage)
+            throws IOException {
+        var page = new PageBuilder(pageSize, 1.0);
+        page.reset((byte) 0x0d, 100);
+        byte[] schemaRecord = Record.encode(new Object[] {
+                "table", tableName, tableName, rootPage, createTableSql}, StandardCharsets.UTF_8);
+        page.addCell(new Cell((byte) 0x0d, schemaRecord.length, 1, schemaRecord));
+        byte[] contents = page.finish();
+        writeDatabaseHeader(ByteBuffer.wrap(contents).order(ByteOrder.BIG_ENDIAN),
+                pageSize, nextPageNumber - 1);
+        try (var file = new RandomAccessFile(buildPath.toFile(), "rw")) {
+            file.seek(0);
+            file.write(contents);
+        }
+    }
+
+    static void writeDatabaseHeader(ByteBuffer header, int pageSize, int pageCount) {
+        header.put(0, "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII));
+        header.putShort(16, (short) (pageSize == 65536 ? 1 : pageSize));
+        header.put(18, (byte) 1); // legacy journal, not WAL
+        header.put(19, (byte) 1);
+        header.put(20, (byte) 0); // no reserved bytes per page
+        header.put(21, (byte) 64);
+        header.put(22, (byte) 32);
+        header.put(23, (byte) 32);
+        header.putInt(24, 1); // file change counter
+        header.putInt(28, pageCount);
+        header.putInt(32, 0); // no freelist
+        header.putInt(36, 0);
+        header.putInt(40, 1); // schema cookie
+        header.putInt(44, 4); // schema format
+        header.putInt(48, 0);
+        header.putInt(52, 0);
+        header.putInt(56, 1); // UTF-8
+        header.putInt(60, 0);
+        header.putInt(64, 0);
+        header.putInt(68, 0);
+        header.putInt(92, 1); // version-valid-for matches the change counter
+        header.putInt(96, SQLITE_VERSION_NUMBER);
+    }
+}
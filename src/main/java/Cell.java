@@ -1,59 +1,62 @@
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 public class Cell {
     byte type;
-    VarInt bytesOfPayload;
-    VarInt rowId;
+    long bytesOfPayload;
+    long rowId;
     byte[] payload;
+    // cells read from a page point into it instead of copying the payload
+    ByteBuffer payloadView;
     // for B-Tree Interior pages
     int leftChildPointer;
     int firstPageOfOverflow;
 
-    public Cell(byte type, VarInt bytesOfPayload, VarInt rowId, byte[] payload) {
+    public Cell(byte type, long bytesOfPayload, long rowId, byte[] payload) {
         this.type = type;
         this.bytesOfPayload = bytesOfPayload;
         this.rowId = rowId;
         this.payload = payload;
     }
 
-    public Cell(byte type, int leftChildPointer, VarInt rowId) {
+    public Cell(byte type, int leftChildPointer, long rowId) {
         this.type = type;
         this.leftChildPointer = leftChildPointer;
         this.rowId = rowId;
     }
 
-    public Cell(byte type, VarInt bytesOfPayload, byte[] payload) {
+    public Cell(byte type, long bytesOfPayload, byte[] payload) {
         this.type = type;
         this.bytesOfPayload = bytesOfPayload;
         this.payload = payload;
     }
 
     public static Cell readCell(ByteBuffer buffer, byte type) {
+        QueryStats.cellDecoded();
         return switch (type) {
             case 0x0d -> { // leaf table
-                VarInt bytesOfPayload = from(buffer);
-                VarInt rowId = from(buffer);
-                byte[] payload = new byte[(int) bytesOfPayload.value()];
-                buffer.get(payload);
-                yield new Cell(type, bytesOfPayload, rowId, payload);
+                long bytesOfPayload = VarInt.read(buffer);
+                long rowId = VarInt.read(buffer);
+                Cell cell = new Cell(type, bytesOfPayload, rowId, null);
+                cell.payloadView = slicePayload(buffer, bytesOfPayload);
+                yield cell;
             }
             case 0x05 -> { // interior table
                 int leftChildPointer = buffer.getInt();
-                VarInt rowId = from(buffer);
+                long rowId = VarInt.read(buffer);
                 yield new Cell(type, leftChildPointer, rowId);
             }
             case 0x0a -> { // leaf index
-                VarInt bytesOfPayload = from(buffer);
-                byte[] payload = new byte[(int) bytesOfPayload.value()];
-                buffer.get(payload);
-                yield new Cell(type, bytesOfPayload, payload);
+                long bytesOfPayload = VarInt.read(buffer);
+                Cell cell = new Cell(type, bytesOfPayload, null);
+                cell.payloadView = slicePayload(buffer, bytesOfPayload);
+                yield cell;
             }
             case 0x02 -> { // interior index
                 int leftChildPointer = buffer.getInt();
-                VarInt bytesOfPayload = from(buffer);
-                byte[] payload = new byte[(int) bytesOfPayload.value()];
-                buffer.get(payload);
-                Cell cell = new Cell(type, bytesOfPayload, payload);
+                long bytesOfPayload = VarInt.read(buffer);
+                Cell cell = new Cell(type, bytesOfPayload, null);
+                cell.payloadView = slicePayload(buffer, bytesOfPayload);
                 cell.leftChildPointer = leftChildPointer;
                 yield cell;
             }
@@ -61,18 +64,59 @@ public class Cell {
         };
     }
 
-    public static VarInt from(ByteBuffer buff) {
-        long result = 0L;
-        int bytesRead = 0;
-        for (int i = 0; i < 9; ++i) {
-            byte b = buff.get();
-            bytesRead++;
-            result = (result << 7) + (b & 0x7f);
-            if (((b >> 7) & 1) == 0) {
-                break;
+    private static ByteBuffer slicePayload(ByteBuffer buffer, long bytesOfPayload) {
+        int start = buffer.position();
+        var view = buffer.slice(start, (int) bytesOfPayload);
+        buffer.position(start + (int) bytesOfPayload);
+        return view;
+    }
+
+    // the payload for reading records from, valid as long as the page a
+    // read cell came from
+    public ByteBuffer payloadBuffer() {
+        var buffer = payload != null ? ByteBuffer.wrap(payload) : payloadView.duplicate();
+        return buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    // mirror of readCell
+    public static void writeCell(ByteBuffer buffer, Cell cell) {
+        switch (cell.type) {
+            case 0x0d -> {
+                VarInt.write(buffer, cell.payload.length);
+                VarInt.write(buffer, cell.rowId);
+                buffer.put(cell.payload);
+            }
+            case 0x05 -> {
+                buffer.putInt(cell.leftChildPointer);
+                VarInt.write(buffer, cell.rowId);
+            }
+            case 0x0a -> {
+                VarInt.write(buffer, cell.payload.length);
+                buffer.put(cell.payload);
             }
+            case 0x02 -> {
+                buffer.putInt(cell.leftChildPointer);
+                VarInt.write(buffer, cell.payload.length);
+                buffer.put(cell.payload);
+            }
+            default -> throw new UnrecognizedCellTypeException("Unrecognized cell type: " + cell.type);
         }
-        return new VarInt(bytesRead, result);
+    }
+
+    public static int sizeOf(Cell cell) {
+        return switch (cell.type) {
+            case 0x0d -> VarInt.sizeOf(cell.payload.length) + VarInt.sizeOf(cell.rowId)
+                    + cell.payload.length;
+            case 0x05 -> 4 + VarInt.sizeOf(cell.rowId);
+            case 0x0a -> VarInt.sizeOf(cell.payload.length) + cell.payload.length;
+            case 0x02 -> 4 + VarInt.sizeOf(cell.payload.length) + cell.payload.length;
+            default -> throw new UnrecognizedCellTypeException("Unrecognized cell type: " + cell.type);
+        };
+    }
+
+    // largest payload kept on the page before SQLite spills to overflow pages
+    static int maxLocalPayload(int usableSize, byte type) {
+        return type == 0x0d ? usableSize - 35 : ((usableSize - 12) * 64 / 255) - 23;
     }
 
     public byte getType() {
@@ -83,23 +127,29 @@ public class Cell {
         this.type = type;
     }
 
-    public VarInt getBytesOfPayload() {
+    public long getBytesOfPayload() {
         return bytesOfPayload;
     }
 
-    public void setBytesOfPayload(VarInt bytesOfPayload) {
+    public void setBytesOfPayload(long bytesOfPayload) {
         this.bytesOfPayload = bytesOfPayload;
     }
 
-    public VarInt getRowId() {
+    public long getRowId() {
         return rowId;
     }
 
-    public void setRowId(VarInt rowId) {
+    public void setRowId(long rowId) {
         this.rowId = rowId;
     }
 
+    // a copy for cells read from a page
     public byte[] getPayload() {
+        if (payload == null && payloadView != null) {
+            byte[] copy = new byte[payloadView.capacity()];
+            payloadView.get(0, copy);
+            return copy;
+        }
         return payload;
     }
 
@@ -0,0 +1,114 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+// RFC 4180 rows: quoted fields may hold separators, doubled quotes and line
+// breaks. Every field is returned as text, like the sqlite3 .import command
+// does for a table it creates.
+public class CsvReader implements Iterator<Object[]>, Closeable {
+    private final Reader reader;
+    private final char separator;
+    private final List<String> header;
+    private Object[] next;
+    private int peeked = -2;
+
+    public CsvReader(Reader reader, char separator) throws IOException {
+        this.reader = reader;
+        this.separator = separator;
+        var firstRow = readRow();
+        if (firstRow == null) {
+            throw new IOException("CSV input has no header row");
+        }
+        this.header = firstRow;
+        advance();
+    }
+
+    public List<String> getHeader() { return header; }
+
+    @Override
+    public boolean hasNext() { return next != null; }
+
+    @Override
+    public Object[] next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        Object[] row = next;
+        try {
+            advance();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return row;
+    }
+
+    private void advance() throws IOException {
+        var row = readRow();
+        next = row == null ? null : row.toArray();
+    }
+
+    private int read() throws IOException {
+        if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return reader.read();
+    }
+
+    private List<String> readRow() throws IOException {
+        int c = read();
+        if (c == -1) {
+            return null;
+        }
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        while (true) {
+            if (quoted) {
+                if (c == -1) {
+                    throw new IOException("Unterminated quoted field");
+                }
+                if (c == '"') {
+                    int following = read();
+                    if (following == '"') {
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                        c = following;
+                        continue;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"' && field.isEmpty()) {
+                quoted = true;
+            } else if (c == separator) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\r' || c == '\n' || c == -1) {
+                if (c == '\r') {
+                    int following = read();
+                    if (following != '\n') {
+                        peeked = following;
+                    }
+                }
+                fields.add(field.toString());
+                return fields;
+            } else {
+                field.append((char) c);
+            }
+            c = read();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
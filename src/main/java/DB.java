@@ -1,12 +1,20 @@
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Objects;
-public class DB {
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Flow;
+public class DB implements Closeable {
     //    ByteBuffer fileContents;
     String databaseFilePath;
     public DB(String databaseFilePath) throws IOException {
@@ -14,14 +22,111 @@ public class DB {
         load();
     }
     RandomAccessFile randomAccessFile;
+    WalIndex walIndex;
     int pageSize;
     DBInfo dbInfo;
+    QueryStats lastQueryStats;
+    TextDecoder textDecoder = TextDecoder.UTF_8;
+    boolean stringDictionary = Boolean.getBoolean("sqlite.dictionary");
+    // off unless given a size in bytes
+    ResultCache resultCache = Long.getLong("sqlite.resultCache", 0) > 0
+            ? new ResultCache(Long.getLong("sqlite.resultCache", 0)) : null;
+    int changeCounter;
+    long fileModified;
+    // <db>.zonemap, reread when the data version or the file changes
+    ZoneMap zoneMap;
+    DataVersion zoneMapVersion;
+    FileTime zoneMapModified;
+    // filters of the searched B-trees answer lookups for absent keys; off
+    // unless given a false positive rate, kept in <db>.bloom with
+    // -Dsqlite.bloomSidecar=true
+    double bloomFilterFpp = Double.parseDouble(System.getProperty("sqlite.bloomFilter", "0"));
+    boolean bloomSidecar = Boolean.getBoolean("sqlite.bloomSidecar");
+    DataVersion bloomFilterVersion;
+    final Map<Integer, BloomFilter> bloomFilters = new HashMap<>();
+    // page buffers are recycled by full scans; off the heap with
+    // -Dsqlite.directPages=true
+    boolean directPages = Boolean.getBoolean("sqlite.directPages");
+    PagePool pagePool;
+    // planner statistics are kept until the data they describe changes
+    static final int STATISTICS_PROBES = 8;
+    DataVersion statisticsVersion;
+    final Map<String, TableStatistics> statisticsCache = new HashMap<>();
     private void load() throws IOException {
+        if (randomAccessFile != null) {
+            randomAccessFile.close();
+        }
+        // before the header, so the data read is never older than the time
+        fileModified = Files.getLastModifiedTime(Path.of(databaseFilePath)).to(TimeUnit.MICROSECONDS);
         randomAccessFile = new RandomAccessFile(databaseFilePath, "r");
+        pagesSinceSnapshotCheck = 0;
+        readHeader();
+        // committed WAL frames shadow main file pages for this snapshot
+        if (walIndex == null) {
+            walIndex = new WalIndex(databaseFilePath, pageSize);
+        }
+        walIndex.refresh();
         this.dbInfo = dbInfo();
+        if (Boolean.getBoolean("sqlite.jmx")) {
+            QueryMetrics.register();
+        }
+    }
+    @Override
+    public void close() throws IOException {
+        if (randomAccessFile != null) {
+            randomAccessFile.close();
+            randomAccessFile = null;
+        }
+        walIndex.close();
+    }
+    public QueryStats getLastQueryStats() { return lastQueryStats; }
+    // repeated queries are answered from memory until the data changes;
+    // null turns the cache off
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+    public ResultCache getResultCache() { return resultCache; }
+    // reuse decoded strings of low-cardinality text columns within a query
+    public void setStringDictionary(boolean stringDictionary) {
+        this.stringDictionary = stringDictionary;
+    }
+    // takes effect when the file is next reopened, at the next query
+    public void setDirectPages(boolean directPages) {
+        this.directPages = directPages;
+    }
+    public PagePool getPagePool() { return pagePool; }
+    // 0 turns the filters off
+    public void setBloomFilter(double fpp, boolean sidecar) {
+        if (fpp != 0 && !(fpp > 0 && fpp < 1)) {
+            throw new IllegalArgumentException("Invalid false positive rate: " + fpp);
+        }
+        this.bloomFilterFpp = fpp;
+        this.bloomSidecar = sidecar;
     }
     public record DBInfo(int pageSize, int numberOfTables) {}
-    public DBInfo dbInfo() throws IOException {
+    // identifies the committed state being read: the file change counter and
+    // the position of the last commit in the WAL; a checkpoint rewrites the
+    // file without moving the counter, so its modification time counts too
+    public record DataVersion(int changeCounter, long fileModified, long walSalt,
+                              long walCommittedOffset) {}
+    public DataVersion dataVersion() {
+        return new DataVersion(changeCounter, fileModified, walIndex.getSalt(),
+                walIndex.getCommittedOffset());
+    }
+    // no lock is held while a query runs, see WalIndex; instead the file and
+    // the log are compared with the version loaded before it started
+    static final int SNAPSHOT_ATTEMPTS = 3;
+    static final int SNAPSHOT_CHECK_PAGES = 4096;
+    int pagesSinceSnapshotCheck;
+    private void checkSnapshot(Exception cause) throws IOException {
+        long modified = Files.getLastModifiedTime(Path.of(databaseFilePath)).to(TimeUnit.MICROSECONDS);
+        randomAccessFile.seek(24);
+        if (modified != fileModified || randomAccessFile.readInt() != changeCounter ||
+                walIndex.changedSinceRefresh()) {
+            throw new SnapshotChangedException(cause);
+        }
+    }
+    private void readHeader() throws IOException {
         // The page size is stored at the 16th byte offset, using 2 bytes in
         // big-endian order.
         // '& 0xFFFF' is used to convert the signed short to an unsigned int.
@@ -32,149 +137,812 @@ public class DB {
         ByteBuffer pageHeader =
                 ByteBuffer.wrap(headerBytes).order(ByteOrder.BIG_ENDIAN);
         pageSize = pageHeader.position(16).getShort() & 0xFFFF;
-        byte[] pageBuffer = new byte[pageSize];
-        randomAccessFile.seek(0);
-        bytesRead = randomAccessFile.read(pageBuffer);
-        assert bytesRead == pageSize;
-        ByteBuffer firstPage =
-                ByteBuffer.wrap(pageBuffer).order(ByteOrder.BIG_ENDIAN);
-        firstPage.position(100);
-        var btreeHeader = BtreePageHeader.getHeader(firstPage);
+        if (pageSize == 1) {
+            pageSize = 65536;
+        }
+        changeCounter = pageHeader.getInt(24);
+        if (pagePool == null || pagePool.pageSize != pageSize || pagePool.direct != directPages) {
+            pagePool = new PagePool(pageSize, directPages);
+        }
+        textDecoder = new TextDecoder(
+                TextDecoder.charsetFor(pageHeader.getInt(56)), stringDictionary);
+    }
+    public DBInfo dbInfo() throws IOException {
+        var btreeHeader = getFirstPage().btreePageHeader;
         assert btreeHeader.pageType == 0x0d;
         return new DBInfo(pageSize, btreeHeader.cellCounts);
     }
     public void printTableNames() throws IOException {
         BtreePage page = getFirstPage();
         List<String> tableNames = new ArrayList<>();
-        ByteBuffer pageContents =
-                ByteBuffer.wrap(page.pageContents).order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer pageContents = page.buffer();
         for (var cellOffset : page.cellPointerArray) {
             pageContents.position(cellOffset);
             var cell = Cell.readCell(pageContents, page.btreePageHeader.pageType);
-            ByteBuffer cellPayload =
-                    ByteBuffer.wrap(cell.getPayload()).order(ByteOrder.BIG_ENDIAN);
-            var record = Record.readRecord(cellPayload);
+            ByteBuffer cellPayload = cell.payloadBuffer();
+            var record = Record.readRecord(cellPayload, textDecoder);
             tableNames.add(String.valueOf(record.getValues().get(2)));
         }
         System.out.println(String.join(" ", tableNames));
     }
     public int countRows(String table) throws IOException {
-        var tablePage = getTablePage(table);
-        return countRows(tablePage);
+        if (resultCache == null) {
+            return scanCount(table);
+        }
+        var sql = "SELECT COUNT(*) FROM " + table;
+        var cached = cachedResult(sql);
+        if (cached != null) {
+            return Integer.parseInt(cached.get(0)[0]);
+        }
+        var version = dataVersion();
+        int count = scanCount(table);
+        resultCache.put(ResultCache.normalize(sql), version,
+                List.<String[]>of(new String[] {String.valueOf(count)}));
+        return count;
     }
+    private int scanCount(String table) throws IOException {
+        for (int attempt = 1; ; ++attempt) {
+            var stats = QueryStats.begin("SELECT COUNT(*) FROM " + table);
+            try {
+                load();
+                int count;
+                var tablePage = getTablePage(table);
+                try {
+                    count = countRows(tablePage);
+                } finally {
+                    tablePage.release();
+                }
+                checkSnapshot(null);
+                return count;
+            } catch (SnapshotChangedException e) {
+                if (attempt == SNAPSHOT_ATTEMPTS) {
+                    throw e;
+                }
+            } finally {
+                stats.end();
+                lastQueryStats = stats;
+            }
+        }
+    }
+    // WITHOUT ROWID tables are index B-trees, where interior cells are rows
+    // too
     public int countRows(BtreePage page) throws IOException {
-        if (page.btreePageHeader.pageType == 0x0d) {
+        byte pageType = page.btreePageHeader.pageType;
+        if (pageType == 0x0d || pageType == 0x0a) {
             return page.btreePageHeader.cellCounts;
         } else {
-            int count = 0;
-            ByteBuffer pageContents =
-                    ByteBuffer.wrap(page.getPageContents()).order(ByteOrder.BIG_ENDIAN);
+            int count = pageType == 0x02 ? page.btreePageHeader.cellCounts : 0;
+            ByteBuffer pageContents = page.buffer();
             for (var cellOffset : page.cellPointerArray) {
                 pageContents.position(cellOffset);
                 var cell = Cell.readCell(pageContents, page.btreePageHeader.pageType);
                 var pageNumber = cell.leftChildPointer;
                 var childPage = getNthPage(pageNumber);
                 count += countRows(childPage);
+                childPage.release();
             }
             var rightmostPage = getNthPage(page.btreePageHeader.rightMostPointer);
             count += countRows(rightmostPage);
+            rightmostPage.release();
             return count;
         }
     }
     private BtreePage getTablePage(String table) throws IOException {
         BtreePage page = getFirstPage();
-        byte rootPageIndex = 0;
-        ByteBuffer pageContents =
-                ByteBuffer.wrap(page.pageContents).order(ByteOrder.BIG_ENDIAN);
+        int rootPageIndex = 0;
+        ByteBuffer pageContents = page.buffer();
         for (var cellOffset : page.cellPointerArray) {
             pageContents.position(cellOffset);
             var cell = Cell.readCell(pageContents, page.btreePageHeader.pageType);
-            ByteBuffer cellPayload =
-                    ByteBuffer.wrap(cell.getPayload()).order(ByteOrder.BIG_ENDIAN);
-            var record = Record.readRecord(cellPayload);
+            ByteBuffer cellPayload = cell.payloadBuffer();
+            var record = Record.readRecord(cellPayload, textDecoder);
             if (record.getValues().get(2).equals(table)) {
-                rootPageIndex = (byte)record.getValues().get(3);
+                rootPageIndex = ((Number) record.getValues().get(3)).intValue();
                 break;
             }
         }
         return getNthPage(rootPageIndex);
     }
     public List<String[]> runQuery(Query query) throws IOException {
+        if (resultCache == null) {
+            return collectRows(query);
+        }
+        var cached = cachedResult(query.getSql());
+        if (cached != null) {
+            return ResultCache.copyOf(cached);
+        }
+        var version = dataVersion();
+        var rows = collectRows(query);
+        resultCache.put(ResultCache.normalize(query.getSql()), version, ResultCache.copyOf(rows));
+        return rows;
+    }
+    // reopens the file to see the current data version, a hit is recorded
+    // as a query that read nothing
+    private List<String[]> cachedResult(String sql) throws IOException {
         load();
-        var firstPage = BtreePage.readPage(randomAccessFile, pageSize, 1);
-        var schema = Schema.loadSchema(firstPage, query.getTable());
-        var columnIndexes = getColumnIndexes(schema, query);
-        var tablePage = getTablePage(query.getTable());
-        RowPredicate rowPredicate = null;
-        List<String[]> resultSet = new ArrayList<>();
-        if (!query.filter.isBlank()) {
-            rowPredicate = new RowPredicate(query.filter, schema);
-            if (schema.index != null &&
-                    schema.index.colIndex() == rowPredicate.colIndex) {
-                var indexRootPageNumber = schema.index.pageNumber();
-                var indexPage =
-                        BtreePage.readPage(randomAccessFile, pageSize, indexRootPageNumber);
-                List<Record> indexResultSet2 = new ArrayList<>();
-                queryIndexOpt(indexPage, rowPredicate, indexResultSet2);
-                executeIndexedSearch(tablePage, indexResultSet2, columnIndexes,
-                        resultSet);
+        var rows = resultCache.get(ResultCache.normalize(sql), dataVersion());
+        if (rows != null) {
+            var stats = QueryStats.begin(sql);
+            stats.end();
+            lastQueryStats = stats;
+        }
+        return rows;
+    }
+    // nothing has been handed out yet, so a query that raced a writer is
+    // simply run again
+    private List<String[]> collectRows(Query query) throws IOException {
+        for (int attempt = 1; ; ++attempt) {
+            List<String[]> resultSet = new ArrayList<>();
+            try {
+                streamQuery(query, new RowConsumer() {
+                    List<Schema.Column> columns;
+                    @Override
+                    public void begin(List<Schema.Column> columns) {
+                        this.columns = columns;
+                    }
+                    @Override
+                    public void accept(long rowId, Record record) {
+                        resultSet.add(toStrings(columns, rowId, record));
+                    }
+                });
                 return resultSet;
+            } catch (SnapshotChangedException e) {
+                if (attempt == SNAPSHOT_ATTEMPTS) {
+                    throw e;
+                }
+            }
+        }
+    }
+    static String[] toStrings(List<Schema.Column> columns, long rowId, Record record) {
+        String[] row = new String[columns.size()];
+        for (int i = 0; i < columns.size(); ++i) {
+            var colValue = columns.get(i).isPK()
+                    ? rowId
+                    : record.getValue(columns.get(i).index());
+            row[i] = String.valueOf(colValue);
+        }
+        return row;
+    }
+    // rows as a subscriber asks for them, see QueryPublisher
+    public Flow.Publisher<String[]> publish(Query query) {
+        return QueryPublisher.rows(databaseFilePath, query, stringDictionary);
+    }
+    public Flow.Publisher<List<String[]>> publishBatches(Query query, int batchSize) {
+        return QueryPublisher.batches(databaseFilePath, query, stringDictionary, batchSize);
+    }
+    // hands every matching row to the consumer as the traversal reaches it
+    // instead of materializing the result set. Rows already handed out
+    // cannot be taken back, so when the data changed under the query it
+    // ends with SnapshotChangedException and the caller decides whether to
+    // discard them and run it again.
+    public void streamQuery(Query query, RowConsumer consumer)
+            throws IOException {
+        var stats = QueryStats.begin(query.getSql());
+        try {
+            try {
+                evaluate(query, consumer);
+            } catch (IOException | RuntimeException e) {
+                // a page overwritten mid-traversal can look corrupt
+                if (!(e instanceof QueryCancelledException)) {
+                    checkSnapshot(e);
+                }
+                throw e;
+            }
+            checkSnapshot(null);
+        } finally {
+            stats.end();
+            lastQueryStats = stats;
+        }
+    }
+    private void evaluate(Query query, RowConsumer consumer)
+            throws IOException {
+        load();
+        var plan = plan(query);
+        if (stringDictionary) {
+            textDecoder = new TextDecoder(textDecoder.charset, true);
+        }
+        consumer.begin(getColumnIndexes(plan.schema, query));
+        if (plan.ruledOut) {
+            return;
+        }
+        var tablePage = getNthPage(plan.schema.pageNumber);
+        try {
+            evaluate(plan, tablePage, consumer);
+        } finally {
+            tablePage.release();
+        }
+    }
+    private void evaluate(QueryPlan plan, BtreePage tablePage, RowConsumer consumer)
+            throws IOException {
+        switch (plan.accessPath) {
+            case INDEX_SEARCH -> {
+                var indexPage = getNthPage(plan.index.pageNumber());
+                List<Record> indexResultSet2 = new ArrayList<>();
+                queryIndexOpt(indexPage, plan.rowPredicate, indexResultSet2);
+                executeIndexedSearch(tablePage, indexResultSet2, consumer);
+            }
+            case PRIMARY_KEY_SEEK -> {
+                // the clustered index holds the whole row
+                List<Record> rows = new ArrayList<>();
+                queryIndexOpt(tablePage, plan.rowPredicate, rows);
+                for (var row : rows) {
+                    consumer.accept(0, row);
+                    QueryStats.rowReturned();
+                }
+            }
+            case ROWID_SEEK -> {
+                var searchResult = indexedSearch(tablePage,
+                        plan.rowPredicate.getIntegerLiteral());
+                if (searchResult != null) {
+                    consumer.accept(searchResult.rowId, searchResult.re);
+                    QueryStats.rowReturned();
+                }
+            }
+            case FULL_SCAN -> {
+                if (plan.zones == null || plan.zones.mayMatch(plan.schema.pageNumber, plan.rowPredicate)) {
+                    executeQuery(tablePage, plan.rowPredicate, plan.zones, consumer);
+                }
+            }
+        }
+    }
+    // picks the access path expected to read the fewest pages: a full scan,
+    // a rowid seek on the INTEGER PRIMARY KEY, a seek on the leading primary
+    // key column of a WITHOUT ROWID table or a search on any index whose
+    // first column is the filtered one
+    public QueryPlan plan(Query query) throws IOException {
+        var firstPage = getFirstPage();
+        var schema = Schema.loadSchema(firstPage, query.getTable(), textDecoder);
+        if (query.filter == null || query.filter.isBlank()) {
+            return new QueryPlan(query, schema, null,
+                    QueryPlan.AccessPath.FULL_SCAN, null);
+        }
+        var rowPredicate = new RowPredicate(query.filter, schema);
+        rowPredicate.bind(textDecoder);
+        var statistics = statistics(schema);
+        var best = new QueryPlan(query, schema, rowPredicate,
+                QueryPlan.AccessPath.FULL_SCAN, null);
+        best.estimate(statistics.tree, null, statistics.rows, statistics.rows,
+                statistics.source);
+        var column = schema.columnList.get(rowPredicate.colIndex);
+        var sidecar = zoneMap();
+        var zones = sidecar == null ? null : sidecar.table(schema.tableName);
+        if (zones != null && zones.rootPage == schema.pageNumber && zones.covers(column.name())) {
+            best.zones = zones;
+            best.estimatedPages = zones.matchingPages(rowPredicate);
+        }
+        // seeks and index searches only find equal keys, ranges are scanned
+        if (!"=".equals(rowPredicate.getOp())) {
+            return best;
+        }
+        if (column.isPK() && rowPredicate.getIntegerLiteral() != null) {
+            var seek = new QueryPlan(query, schema, rowPredicate,
+                    QueryPlan.AccessPath.ROWID_SEEK, null);
+            seek.ruledOut = !mayContainKey(schema.pageNumber,
+                    BloomFilter.hash((double) rowPredicate.getIntegerLiteral()));
+            seek.estimate(statistics.tree, null, statistics.rows, seek.ruledOut ? 0 : 1,
+                    statistics.source);
+            best = seek;
+        }
+        // the seek stops at the first larger key, which only holds in a tree
+        // sorted the way the predicate compares
+        if (schema.withoutRowId && column.index() == 0 && schema.primaryKey.get(0).ascendingBinary()) {
+            // unique unless the key has more columns than the one filtered
+            double matching = schema.primaryKey.size() == 1 ? 1
+                    : Math.min(statistics.rows, QueryPlan.DEFAULT_ROWS_PER_INDEX_KEY);
+            var seek = new QueryPlan(query, schema, rowPredicate,
+                    QueryPlan.AccessPath.PRIMARY_KEY_SEEK, null);
+            seek.ruledOut = !mayContainKey(schema.pageNumber, keyHash(rowPredicate));
+            seek.estimate(statistics.tree, null, statistics.rows, seek.ruledOut ? 0 : matching,
+                    statistics.source);
+            if (seek.estimatedPages <= best.estimatedPages) {
+                best = seek;
+            }
+        }
+        for (var index : schema.indexes) {
+            if (index.colIndex() != rowPredicate.colIndex || !rowPredicate.comparesAsText()) {
+                continue;
+            }
+            var indexStatistics = indexStatistics(statistics, index);
+            var search = new QueryPlan(query, schema, rowPredicate,
+                    QueryPlan.AccessPath.INDEX_SEARCH, index);
+            // no need to probe the index for a key it does not hold
+            search.ruledOut = !mayContainKey(index.pageNumber(), keyHash(rowPredicate));
+            var matching = search.ruledOut
+                    ? new TableStatistics.Estimate(0, TableStatistics.Source.SAMPLED)
+                    : estimateMatches(indexStatistics, rowPredicate.getExpectedText());
+            search.estimate(statistics.tree, indexStatistics.tree, statistics.rows,
+                    matching.rows(), matching.source());
+            if (search.estimatedPages < best.estimatedPages) {
+                best = search;
+            }
+        }
+        return best;
+    }
+    TableStatistics statistics(Schema schema) throws IOException {
+        var version = dataVersion();
+        if (!version.equals(statisticsVersion)) {
+            statisticsCache.clear();
+            statisticsVersion = version;
+        }
+        var statistics = statisticsCache.get(schema.tableName);
+        if (statistics != null) {
+            return statistics;
+        }
+        statistics = new TableStatistics();
+        statistics.tree = estimateTree(schema.pageNumber);
+        statistics.rows = -1;
+        readStat1(schema, statistics);
+        readStat4(schema, statistics);
+        if (statistics.rows < 0) {
+            statistics.rows = probeTree(schema.pageNumber);
+        }
+        statisticsCache.put(schema.tableName, statistics);
+        return statistics;
+    }
+    private TableStatistics.IndexStatistics indexStatistics(
+            TableStatistics statistics, Schema.Index index) throws IOException {
+        var indexStatistics = statistics.indexes.computeIfAbsent(index.name(),
+                name -> new TableStatistics.IndexStatistics(index));
+        if (indexStatistics.tree == null) {
+            indexStatistics.tree = estimateTree(index.pageNumber());
+            if (indexStatistics.entries < 0) {
+                indexStatistics.entries = probeTree(index.pageNumber());
+            }
+        }
+        return indexStatistics;
+    }
+    // rows per key as ANALYZE left it in sqlite_stat1(tbl, idx, stat)
+    private void readStat1(Schema schema, TableStatistics statistics) throws IOException {
+        for (var row : readStatTable("sqlite_stat1")) {
+            if (!schema.tableName.equals(row.getValue(0)) || row.getSerialTypes().length < 3) {
+                continue;
+            }
+            long[] stat = TableStatistics.parseStat1(String.valueOf(row.getValue(2)));
+            if (stat.length == 0) {
+                continue;
+            }
+            statistics.rows = stat[0];
+            statistics.source = TableStatistics.Source.STAT1;
+            var indexName = row.getValue(1);
+            var index = schema.indexes.stream()
+                    .filter(i -> i.name().equals(indexName)).findAny();
+            if (index.isPresent() && stat.length > 1) {
+                var indexStatistics = statistics.indexes.computeIfAbsent(index.get().name(),
+                        name -> new TableStatistics.IndexStatistics(index.get()));
+                indexStatistics.entries = stat[0];
+                indexStatistics.rowsPerKey = stat[1];
+            }
+        }
+    }
+    // sqlite_stat4(tbl, idx, neq, nlt, ndlt, sample): the sample is an index
+    // record and neq starts with the number of rows sharing its first column
+    private void readStat4(Schema schema, TableStatistics statistics) throws IOException {
+        for (var row : readStatTable("sqlite_stat4")) {
+            if (!schema.tableName.equals(row.getValue(0)) || row.getSerialTypes().length < 6) {
+                continue;
+            }
+            var indexName = row.getValue(1);
+            var index = schema.indexes.stream()
+                    .filter(i -> i.name().equals(indexName)).findAny();
+            int sampleType = row.getSerialType(5);
+            if (index.isEmpty() || sampleType < 12 || Record.isText(sampleType)) {
+                continue;
+            }
+            long[] neq = TableStatistics.parseStat1(String.valueOf(row.getValue(2)));
+            if (neq.length == 0) {
+                continue;
+            }
+            var sample = row.getPayload().duplicate()
+                    .position(row.getValueOffset(5))
+                    .limit(row.getValueOffset(5) + row.getValueLength(5))
+                    .slice().order(ByteOrder.BIG_ENDIAN);
+            var indexStatistics = statistics.indexes.computeIfAbsent(index.get().name(),
+                    name -> new TableStatistics.IndexStatistics(index.get()));
+            indexStatistics.samples.add(Record.readRecord(sample, textDecoder));
+            indexStatistics.sampleRows.add(neq[0]);
+        }
+    }
+    private List<Record> readStatTable(String table) throws IOException {
+        List<Record> rows = new ArrayList<>();
+        if (schemaRecords().stream().noneMatch(row -> table.equals(row.getValues().get(2)))) {
+            return rows; // ANALYZE never ran
+        }
+        var schema = Schema.loadSchema(getFirstPage(), table, textDecoder);
+        collectRecords(getNthPage(schema.pageNumber), rows);
+        return rows;
+    }
+    // every row of sqlite_schema, however many pages it spans
+    List<Record> schemaRecords() throws IOException {
+        List<Record> rows = new ArrayList<>();
+        collectRecords(getFirstPage(), rows);
+        return rows;
+    }
+    private void collectRecords(BtreePage page, List<Record> rows) throws IOException {
+        page.popCells(textDecoder);
+        if (page.btreePageHeader.pageType == 0x0d) {
+            rows.addAll(List.of(page.records));
+            return;
+        }
+        for (var cell : page.cellArray) {
+            collectRecords(getNthPage(cell.leftChildPointer), rows);
+        }
+        collectRecords(getNthPage(page.btreePageHeader.rightMostPointer), rows);
+    }
+    // Knuth's estimator: the product of the fan-outs along a random
+    // root-to-leaf path times the cells on the path is an unbiased guess of
+    // the number of entries, averaged over a few paths. Index interior cells
+    // are entries too. The seed is fixed so plans are repeatable.
+    private long probeTree(int rootPageNumber) throws IOException {
+        var random = new Random(rootPageNumber);
+        double total = 0;
+        int probes = 0;
+        while (probes < STATISTICS_PROBES) {
+            var page = getNthPage(rootPageNumber);
+            double weight = 1;
+            double entries = 0;
+            boolean leafRoot = true;
+            while (page.btreePageHeader.pageType == 0x05 ||
+                    page.btreePageHeader.pageType == 0x02) {
+                leafRoot = false;
+                int cells = page.btreePageHeader.cellCounts;
+                if (page.btreePageHeader.pageType == 0x02) {
+                    entries += weight * cells;
+                }
+                weight *= cells + 1;
+                int child = random.nextInt(cells + 1);
+                int childPageNumber = child == cells
+                        ? page.btreePageHeader.rightMostPointer
+                        : getNthCell(page.buffer(),
+                                page.cellPointerArray[child],
+                                page.btreePageHeader.pageType).leftChildPointer;
+                page = getNthPage(childPageNumber);
+            }
+            total += entries + weight * page.btreePageHeader.cellCounts;
+            probes++;
+            if (leafRoot) {
+                break; // every probe would read the same page
+            }
+        }
+        return Math.round(total / probes);
+    }
+    // stat4 and stat1 when ANALYZE ran, otherwise the index is probed for
+    // where the key starts and ends: keys within one leaf are counted, keys
+    // spanning leaves are estimated from the pages on the two paths, which
+    // hold the key itself and so are as full as the pages between them
+    private TableStatistics.Estimate estimateMatches(
+            TableStatistics.IndexStatistics indexStatistics, byte[] key) throws IOException {
+        var known = indexStatistics.estimate(key);
+        if (known != null) {
+            return known;
+        }
+        var lower = locateKey(indexStatistics.index.pageNumber(), key, false);
+        var upper = locateKey(indexStatistics.index.pageNumber(), key, true);
+        int leaf = lower.cells().length - 1;
+        int split = 0;
+        while (split < leaf && lower.positions()[split] == upper.positions()[split]) {
+            split++;
+        }
+        double rows;
+        if (split == leaf) {
+            rows = upper.positions()[leaf] - lower.positions()[leaf];
+        } else {
+            // the separators and whole subtrees between the two paths where
+            // they part, then what lies beside each path further down
+            int between = upper.positions()[split] - lower.positions()[split];
+            rows = between + (between - 1)
+                    * (lower.subtreeEntries(split + 1) + upper.subtreeEntries(split + 1)) / 2;
+            for (int level = split + 1; level <= leaf; ++level) {
+                int after = lower.cells()[level] - lower.positions()[level];
+                int before = upper.positions()[level];
+                rows += after + before;
+                if (level < leaf) {
+                    rows += after * lower.subtreeEntries(level + 1)
+                            + before * upper.subtreeEntries(level + 1);
+                }
+            }
+            rows = Math.max(1, Math.min(rows, indexStatistics.entries));
+        }
+        return new TableStatistics.Estimate(rows, TableStatistics.Source.SAMPLED);
+    }
+    // where a key falls in the index: the cell count of the page at every
+    // level of the path to it and the position taken there
+    private record KeyPosition(int[] cells, int[] positions) {
+        // entries under a page at the level, taking the pages on this path
+        // as typical of their level
+        double subtreeEntries(int level) {
+            double entries = cells[cells.length - 1];
+            for (int l = cells.length - 2; l >= level; --l) {
+                entries = cells[l] + (cells[l] + 1) * entries;
+            }
+            return entries;
+        }
+    }
+    private KeyPosition locateKey(int rootPageNumber, byte[] key, boolean after)
+            throws IOException {
+        var cells = new ArrayList<Integer>();
+        var positions = new ArrayList<Integer>();
+        int pageNumber = rootPageNumber;
+        while (true) {
+            var page = getNthPage(pageNumber);
+            page.popCells(textDecoder);
+            int count = page.records.length;
+            int position = 0;
+            while (position < count) {
+                int cmp = page.records[position].compareText(key, 0);
+                if (after ? cmp < 0 : cmp <= 0) {
+                    break;
+                }
+                position++;
+            }
+            cells.add(count);
+            positions.add(position);
+            if (page.btreePageHeader.pageType != 0x02) {
+                return new KeyPosition(cells.stream().mapToInt(Integer::intValue).toArray(),
+                        positions.stream().mapToInt(Integer::intValue).toArray());
+            }
+            pageNumber = position == count
+                    ? page.btreePageHeader.rightMostPointer
+                    : page.cellArray[position].leftChildPointer;
+        }
+    }
+    // EXPLAIN QUERY PLAN, and with analyze also runs the query to report
+    // what it actually cost
+    public QueryPlan explain(Query query, boolean analyze) throws IOException {
+        load();
+        var plan = plan(query);
+        if (plan.tableEstimate == null) {
+            var statistics = statistics(plan.schema);
+            plan.estimate(statistics.tree, null, statistics.rows, statistics.rows,
+                    statistics.source);
+        }
+        if (analyze) {
+            // measured without the result cache
+            if (isCountQuery(query)) {
+                scanCount(query.getTable());
+                plan.actualRows = 1;
+            } else {
+                plan.actualRows = collectRows(query).size();
+            }
+            plan.actual = lastQueryStats;
+        }
+        return plan;
+    }
+    // false when the filter of the B-tree a seek would descend has never
+    // seen the key
+    private boolean mayContainKey(int rootPage, long hash) throws IOException {
+        return bloomFilterFpp <= 0 || bloomFilter(rootPage).mightContain(hash);
+    }
+    // equal keys hash alike, see BloomFilter
+    private static long keyHash(RowPredicate predicate) {
+        return predicate.comparesAsText()
+                ? BloomFilter.hash(predicate.getExpectedText())
+                : BloomFilter.hash(((Number) predicate.getExpected()).doubleValue());
+    }
+    // built by walking the whole tree the first time it is needed for a
+    // version of the data
+    BloomFilter bloomFilter(int rootPage) throws IOException {
+        var path = Path.of(databaseFilePath + BloomFilter.SUFFIX);
+        var version = dataVersion();
+        if (!version.equals(bloomFilterVersion)) {
+            bloomFilters.clear();
+            bloomFilterVersion = version;
+            if (bloomSidecar) {
+                bloomFilters.putAll(BloomFilter.read(path, version, pageSize));
+            }
+        }
+        var filter = bloomFilters.get(rootPage);
+        if (filter == null || filter.fpp > bloomFilterFpp) {
+            var keys = new BloomFilter.Keys();
+            var root = getNthPage(rootPage);
+            try {
+                collectKeys(root, keys);
+            } finally {
+                root.release();
+            }
+            filter = BloomFilter.of(keys, bloomFilterFpp);
+            bloomFilters.put(rootPage, filter);
+            if (bloomSidecar) {
+                BloomFilter.write(path, version, pageSize, bloomFilters);
+            }
+        }
+        return filter;
+    }
+    // rowids of a table, the first column of an index or of a WITHOUT
+    // ROWID table; NULL is never looked up
+    private void collectKeys(BtreePage page, BloomFilter.Keys keys) throws IOException {
+        byte pageType = page.btreePageHeader.pageType;
+        ByteBuffer pageContents = page.buffer();
+        for (var cellOffset : page.cellPointerArray) {
+            pageContents.position(cellOffset);
+            var cell = Cell.readCell(pageContents, pageType);
+            if (pageType == 0x05 || pageType == 0x02) {
+                var childPage = getNthPage(cell.leftChildPointer);
+                collectKeys(childPage, keys);
+                childPage.release();
+            }
+            if (pageType == 0x0d) {
+                keys.add(BloomFilter.hash((double) cell.rowId));
+            } else if (pageType != 0x05) {
+                var record = Record.readRecord(cell.payloadBuffer(), textDecoder);
+                if (record.getSerialType(0) != 0) {
+                    keys.add(BloomFilter.hash(record, 0));
+                }
+            }
+        }
+        if (pageType == 0x05 || pageType == 0x02) {
+            var childPage = getNthPage(page.btreePageHeader.rightMostPointer);
+            collectKeys(childPage, keys);
+            childPage.release();
+        }
+    }
+    // the sidecar when there is a current one, null otherwise
+    ZoneMap zoneMap() throws IOException {
+        var path = Path.of(databaseFilePath + ZoneMap.SUFFIX);
+        FileTime modified;
+        try {
+            modified = Files.getLastModifiedTime(path);
+        } catch (NoSuchFileException e) {
+            zoneMap = null;
+            return null;
+        }
+        var version = dataVersion();
+        if (!version.equals(zoneMapVersion) || !modified.equals(zoneMapModified)) {
+            zoneMap = ZoneMap.read(path, version, pageSize);
+            zoneMapVersion = version;
+            zoneMapModified = modified;
+        }
+        return zoneMap;
+    }
+    // one scan of the table records the bounds of the columns on every page
+    // and adds them to the sidecar, replacing what it held for the table
+    public ZoneMap.TableZones buildZoneMap(String table, List<String> columns) throws IOException {
+        load();
+        var schema = Schema.loadSchema(getFirstPage(), table, textDecoder);
+        var selected = new ArrayList<Schema.Column>();
+        for (var name : columns) {
+            selected.add(schema.columnList.stream()
+                    .filter(c -> c.name().equals(name))
+                    .findAny()
+                    .orElseThrow(() -> new IllegalArgumentException("Column not found: " + name)));
+        }
+        var current = zoneMap();
+        var map = current != null ? current : new ZoneMap(dataVersion(), pageSize);
+        var tableZones = new ZoneMap.TableZones(table, schema.pageNumber, columns);
+        var root = getNthPage(schema.pageNumber);
+        try {
+            collectZones(root, schema.pageNumber, selected, tableZones);
+        } finally {
+            root.release();
+        }
+        map.tables.put(table, tableZones);
+        var path = Path.of(databaseFilePath + ZoneMap.SUFFIX);
+        map.write(path);
+        zoneMap = map;
+        zoneMapVersion = map.version;
+        zoneMapModified = Files.getLastModifiedTime(path);
+        return tableZones;
+    }
+    private ZoneMap.Zone[] collectZones(BtreePage page, int pageNumber, List<Schema.Column> columns,
+                                        ZoneMap.TableZones tableZones) throws IOException {
+        var zones = new ZoneMap.Zone[columns.size()];
+        for (int c = 0; c < zones.length; ++c) {
+            zones[c] = new ZoneMap.Zone();
+        }
+        byte pageType = page.btreePageHeader.pageType;
+        ByteBuffer pageContents = page.buffer();
+        for (var cellOffset : page.cellPointerArray) {
+            pageContents.position(cellOffset);
+            var cell = Cell.readCell(pageContents, pageType);
+            if (pageType == 0x05 || pageType == 0x02) {
+                var childPage = getNthPage(cell.leftChildPointer);
+                var childZones = collectZones(childPage, cell.leftChildPointer, columns, tableZones);
+                childPage.release();
+                for (int c = 0; c < zones.length; ++c) {
+                    zones[c].add(childZones[c]);
+                }
+            }
+            if (pageType != 0x05) {
+                var record = Record.readRecord(cell.payloadBuffer(), textDecoder);
+                for (int c = 0; c < zones.length; ++c) {
+                    var column = columns.get(c);
+                    if (column.isPK()) {
+                        zones[c].add(Record.encode(new Object[] {cell.rowId}, textDecoder.charset), false);
+                    } else {
+                        zones[c].add(record.toBytes(column.index()), record.getSerialType(column.index()) == 0);
+                    }
+                }
             }
         }
-        executeQuery(tablePage, columnIndexes, rowPredicate, resultSet);
-        return resultSet;
+        if (pageType == 0x05 || pageType == 0x02) {
+            int rightMostPointer = page.btreePageHeader.rightMostPointer;
+            var childPage = getNthPage(rightMostPointer);
+            var childZones = collectZones(childPage, rightMostPointer, columns, tableZones);
+            childPage.release();
+            for (int c = 0; c < zones.length; ++c) {
+                zones[c].add(childZones[c]);
+            }
+        }
+        tableZones.pages.put(pageNumber, zones);
+        return zones;
+    }
+    static boolean isCountQuery(Query query) {
+        return query.getColumns().size() == 1 &&
+                query.getColumns().get(0).equalsIgnoreCase("count(*)");
+    }
+    // follows the leftmost path down to a leaf and assumes every page on a
+    // level looks like the one visited
+    QueryPlan.TreeEstimate estimateTree(int rootPageNumber) throws IOException {
+        var page = getNthPage(rootPageNumber);
+        int depth = 1;
+        long pagesOnLevel = 1;
+        long pages = 1;
+        double fanoutSum = 0;
+        while (page.btreePageHeader.pageType == 0x05 ||
+                page.btreePageHeader.pageType == 0x02) {
+            int children = page.btreePageHeader.cellCounts + 1;
+            fanoutSum += children;
+            pagesOnLevel *= children;
+            pages += pagesOnLevel;
+            depth++;
+            int childPageNumber = page.btreePageHeader.rightMostPointer;
+            if (page.cellPointerArray.length > 0) {
+                ByteBuffer pageContents = page.buffer();
+                childPageNumber = getNthCell(pageContents, page.cellPointerArray[0],
+                        page.btreePageHeader.pageType).leftChildPointer;
+            }
+            page = getNthPage(childPageNumber);
+        }
+        int leafCells = page.btreePageHeader.cellCounts;
+        double fanout = depth > 1 ? fanoutSum / (depth - 1) : 0;
+        return new QueryPlan.TreeEstimate(depth, fanout, leafCells,
+                pagesOnLevel * leafCells, pages);
     }
     record IndexedRecord(long rowId, Record re) {}
-    private IndexedRecord indexedSearch(BtreePage page, Record key)
+    private IndexedRecord indexedSearch(BtreePage page, long searchedValue)
             throws IOException {
-        page.popCells();
+        page.popCells(textDecoder);
         byte pageType = page.btreePageHeader.pageType;
-        Object k = key.getValues().get(1);
-        long searchedValue = switch (k) {
-            case Integer i -> Long.valueOf(i);
-            case Long l -> l;
-            case Short s -> s;
-            default -> throw new IllegalStateException("Unexpected value: " + k);
-        };
-        Long[] keysInCell = Arrays.stream(page.cellArray).map(c -> c.getRowId().value()).toArray(Long[]::new);
+        long[] keysInCell = new long[page.cellArray.length];
+        for (int i = 0; i < keysInCell.length; ++i) {
+            keysInCell[i] = page.cellArray[i].rowId;
+        }
         //interior
         if (pageType == 0x05) {
             //search for first key index in array that is greater or equal to searched key
             for (int i = 0; i < keysInCell.length; ++i) {
                 if(searchedValue <= keysInCell[i]){
                     var childPage = getNthPage(page.cellArray[i].leftChildPointer);
-                    return indexedSearch(childPage, key);
+                    return indexedSearch(childPage, searchedValue);
                 }
             }
             if(searchedValue >= keysInCell[keysInCell.length-1]){
                 var rightMostPage = getNthPage(page.btreePageHeader.rightMostPointer);
-                return indexedSearch(rightMostPage, key);
+                return indexedSearch(rightMostPage, searchedValue);
             }
         } else { //leaf
             for (int i = 0; i < keysInCell.length; ++i) {
                 if (searchedValue == keysInCell[i]) {
-                    var rowId = page.cellArray[i].rowId.value();
+                    var rowId = page.cellArray[i].rowId;
                     return new IndexedRecord(rowId, page.records[i]);
                 }
             }
         }
         return null;
     }
-    private void executeIndexedSearch(BtreePage page, List<Record> indexedKeys, List<Schema.Column> selectedColumns, List<String[]> resultSet) throws IOException {
+    private void executeIndexedSearch(BtreePage page, List<Record> indexedKeys, RowConsumer consumer) throws IOException {
         for(var key : indexedKeys){
-            var searchResult = indexedSearch(page, key);
+            if (consumer.isCancelled()) {
+                throw new QueryCancelledException();
+            }
+            // the rowid is the last column of an index record
+            Object k = key.getValue(key.getSerialTypes().length - 1);
+            if (!(k instanceof Number n)) {
+                throw new IllegalStateException("Unexpected value: " + k);
+            }
+            var searchResult = indexedSearch(page, n.longValue());
             if (searchResult != null) {
-                String[] result = new String[selectedColumns.size()];
-                for (int i = 0; i < selectedColumns.size(); ++i) {
-                    var colIndex = selectedColumns.get(i).index();
-                    var colValue =
-                            selectedColumns.get(i).isPK()
-                                    ? String.valueOf(searchResult.rowId)
-                                    : String.valueOf(
-                                    searchResult.re.getValue(colIndex));
-                    result[i] = colValue;
-                }
-                resultSet.add(result);
+                consumer.accept(searchResult.rowId, searchResult.re);
+                QueryStats.rowReturned();
             }
         }
     }
@@ -182,14 +950,14 @@ public class DB {
         for (Record record : indexResultSet) {
             for (int i = 0; i < record.values.size(); ++i) {
                 System.out.printf("type: %d - value: %s | ",
-                        record.serialTypes.get(i),
+                        record.serialTypes[i],
                         record.getValues().get(i));
             }
             System.out.println();
         }
     }
 
-    private Cell getNthCell(ByteBuffer pageContents, short cellPointer,
+    private Cell getNthCell(ByteBuffer pageContents, int cellPointer,
                             byte pageType) {
         pageContents.position(cellPointer);
         return Cell.readCell(pageContents, pageType);
@@ -199,67 +967,46 @@ public class DB {
         return searchedValue.compareTo(recordValue);
     }
     private Record getRecord(Cell cell) {
-        ByteBuffer buffer =
-                ByteBuffer.wrap(cell.payload).order(ByteOrder.BIG_ENDIAN);
-        return Record.readRecord(buffer);
+        ByteBuffer buffer = cell.payloadBuffer();
+        return Record.readRecord(buffer, textDecoder);
     }
+    // equal keys can sit on both sides of an interior cell with the same
+    // key, so descend left on <= and stop at the first larger key
     private void queryIndexOpt(
             BtreePage page, RowPredicate rowPredicate,
             List<Record> resultSet) throws IOException {
-        page.popCells();
-        byte pageType = page.btreePageHeader.pageType;
-        String searchedValue = (String)rowPredicate.getExpected();
-        String[] keysInCell = Arrays.stream(page.records)
-                .map(r -> (String)r.getValue(0))
-                .toArray(String[] ::new);
-        // interior
-        if (pageType == 0x02) {
-            // search for first key index in array that is greater or equal
-            // to searched key
-            for (int i = 0; i < keysInCell.length; ++i) {
-                var cellKey = keysInCell[i];
-                if (Objects.nonNull(cellKey) &&
-                        searchedValue.compareTo(cellKey) <= 0) {
-                    if (searchedValue.equals(cellKey)) {
-                        resultSet.add(page.records[i]);
-                    }
-                    // continue search in child page
-                    var childPage =
-                            getNthPage(page.cellArray[i].leftChildPointer);
-                    queryIndexOpt(childPage, rowPredicate, resultSet);
-                }
-            }
-            if (searchedValue.compareTo(keysInCell[keysInCell.length - 1]) >
-                    0) {
-                var rightMostPage =
-                        getNthPage(page.btreePageHeader.rightMostPointer);
-                queryIndexOpt(rightMostPage, rowPredicate, resultSet);
+        page.popCells(textDecoder);
+        boolean interior = page.btreePageHeader.pageType == 0x02;
+        for (int i = 0; i < page.records.length; ++i) {
+            int compareResult = rowPredicate.compareTo(page.records[i], 0);
+            if (compareResult <= 0 && interior) {
+                var childPage = getNthPage(page.cellArray[i].leftChildPointer);
+                queryIndexOpt(childPage, rowPredicate, resultSet);
             }
-        } else { // leaf
-            for (int i = 0; i < keysInCell.length; ++i) {
-                if (searchedValue.compareTo(keysInCell[i]) <= 0) {
-                    if (searchedValue.equals(keysInCell[i])) {
-                        resultSet.add(page.records[i]);
-                    }
-                }
+            if (compareResult == 0) {
+                resultSet.add(page.records[i]);
+            } else if (compareResult < 0) {
+                return;
             }
         }
+        if (interior) {
+            var rightMostPage = getNthPage(page.btreePageHeader.rightMostPointer);
+            queryIndexOpt(rightMostPage, rowPredicate, resultSet);
+        }
     }
     private void queryIndex(
             BtreePage page, List<Schema.Column> columnIndices,
             RowPredicate rowPredicate, List<Record> indexResultSet)
             throws IOException {
-        page.popCells();
+        page.popCells(textDecoder);
         String searchedValue = (String)rowPredicate.getExpected();
-        ByteBuffer pageContents = ByteBuffer.wrap(page.pageContents)
-                .order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer pageContents = page.buffer();
         for (var cellOffset : page.cellPointerArray) {
             pageContents.position(cellOffset);
             var cell =
                     Cell.readCell(pageContents, page.btreePageHeader.pageType);
-            ByteBuffer cellPayload = ByteBuffer.wrap(cell.getPayload())
-                    .order(ByteOrder.BIG_ENDIAN);
-            var record = Record.readRecord(cellPayload);
+            ByteBuffer cellPayload = cell.payloadBuffer();
+            var record = Record.readRecord(cellPayload, textDecoder);
             String recordValue = (String)record.getValues().get(0);
             var compareResult = searchedValue.compareTo(recordValue);
             if (compareResult == 0) {
@@ -279,49 +1026,59 @@ public class DB {
                     indexResultSet);
         }
     }
+    // subtrees the zone map rules out are not read at all
     private void executeQuery(
-            BtreePage page, List<Schema.Column> columnIndices,
-            RowPredicate rowPredicate, List<String[]> resultSet)
-            throws IOException {
-        ByteBuffer pageContents = ByteBuffer.wrap(page.pageContents)
-                .order(ByteOrder.BIG_ENDIAN);
+            BtreePage page, RowPredicate rowPredicate, ZoneMap.TableZones zones,
+            RowConsumer consumer) throws IOException {
+        if (consumer.isCancelled()) {
+            throw new QueryCancelledException();
+        }
+        ByteBuffer pageContents = page.buffer();
         for (var cellOffset : page.cellPointerArray) {
             pageContents.position(cellOffset);
             var cell =
                     Cell.readCell(pageContents, page.btreePageHeader.pageType);
-            // leaf table
-            if (cell.type == 0x0d) {
-                ByteBuffer cellPayload = ByteBuffer.wrap(cell.getPayload())
-                        .order(ByteOrder.BIG_ENDIAN);
-                var record = Record.readRecord(cellPayload);
-                var includeRowInResultSet =
-                        rowPredicate == null || rowPredicate.eval(record);
-                if (includeRowInResultSet) {
-                    String[] row = new String[columnIndices.size()];
-                    for (int i = 0; i < columnIndices.size(); ++i) {
-                        var colIndex = columnIndices.get(i).index();
-                        var colValue = columnIndices.get(i).isPK()
-                                ? cell.rowId.value()
-                                : record.getValues().get(colIndex);
-                        row[i] = String.valueOf(colValue);
-                    }
-                    resultSet.add(row);
-                }
-            } else if (cell.type == 0x05) {
+            // leaf table, or a leaf of a WITHOUT ROWID table
+            if (cell.type == 0x0d || cell.type == 0x0a) {
+                scanRow(cell, rowPredicate, consumer);
+            } else if (cell.type == 0x05 || cell.type == 0x02) {
                 var childPageNumber = cell.leftChildPointer;
-                BtreePage childPage = getNthPage(childPageNumber);
-                executeQuery(childPage, columnIndices, rowPredicate,
-                        resultSet);
+                if (zones == null || zones.mayMatch(childPageNumber, rowPredicate)) {
+                    BtreePage childPage = getNthPage(childPageNumber);
+                    // the rows handed out are gone once accept returns, so
+                    // the page can be recycled as soon as the scan has left it
+                    executeQuery(childPage, rowPredicate, zones, consumer);
+                    childPage.release();
+                }
+                // an interior index cell holds the row that sorts between
+                // its left child and the next one
+                if (cell.type == 0x02) {
+                    scanRow(cell, rowPredicate, consumer);
+                }
             } else {
                 throw new RuntimeException(
                         "not implemented for page of type: " + cell.type);
             }
         }
-        if (page.btreePageHeader.pageType == 0x05) {
-            BtreePage rightMostChild =
-                    getNthPage(page.btreePageHeader.rightMostPointer);
-            executeQuery(rightMostChild, columnIndices, rowPredicate,
-                    resultSet);
+        byte pageType = page.btreePageHeader.pageType;
+        int rightMostPointer = page.btreePageHeader.rightMostPointer;
+        if ((pageType == 0x05 || pageType == 0x02) &&
+                (zones == null || zones.mayMatch(rightMostPointer, rowPredicate))) {
+            BtreePage rightMostChild = getNthPage(rightMostPointer);
+            executeQuery(rightMostChild, rowPredicate, zones, consumer);
+            rightMostChild.release();
+        }
+    }
+    private void scanRow(Cell cell, RowPredicate rowPredicate, RowConsumer consumer)
+            throws IOException {
+        ByteBuffer cellPayload = cell.payloadBuffer();
+        var record = Record.readRecord(cellPayload, textDecoder);
+        var includeRowInResultSet =
+                rowPredicate == null || rowPredicate.eval(cell.rowId, record);
+        QueryStats.rowScanned(includeRowInResultSet);
+        if (includeRowInResultSet) {
+            consumer.accept(cell.rowId, record);
+            QueryStats.rowReturned();
         }
     }
     private List<Schema.Column> getColumnIndexes(Schema schema,
@@ -340,9 +1097,19 @@ public class DB {
         return indexes;
     }
     private BtreePage getFirstPage() throws IOException {
-        return BtreePage.readPage(randomAccessFile, pageSize, 1);
+        return getNthPage(1);
     }
     private BtreePage getNthPage(int n) throws IOException {
-        return BtreePage.readPage(randomAccessFile, pageSize, n);
+        // pages overwritten under a traversal can link back into the tree
+        // and keep it walking, so the check does not wait for the end
+        if (++pagesSinceSnapshotCheck == SNAPSHOT_CHECK_PAGES) {
+            pagesSinceSnapshotCheck = 0;
+            checkSnapshot(null);
+        }
+        var walPage = walIndex.readPage(n);
+        if (walPage != null) {
+            return walPage;
+        }
+        return BtreePage.readPage(randomAccessFile.getChannel(), pagePool, n);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,531 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+// Builds a single column index for an existing table without a SQLite
+// engine. The table is scanned through DB.streamQuery and every (key, rowid)
+// pair is encoded as the index record it will become. Records are collected
+// in chunks of bounded size; full chunks are sorted and spilled to run files
+// on a thread pool while the scan goes on, then the runs are merged and the
+// index pages are written bottom-up after the last page of the file. Finally
+// the index is registered in sqlite_schema on page 1.
+public class IndexBuilder {
+    static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+    static final double DEFAULT_FILL_FACTOR = 0.9;
+    // SQLite locks the pending, reserved and shared bytes at 1 GiB, holding
+    // all of them exclusively keeps SQLite readers and writers out
+    static final int LOCK_BYTES = 512;
+    // rough per record cost of a byte[] on the heap
+    private static final int ENTRY_OVERHEAD = 32;
+
+    final String databaseFilePath;
+    final long memoryBudget;
+    final int threads;
+    final double fillFactor;
+    private int pageSize;
+
+    public IndexBuilder(String databaseFilePath) {
+        this(databaseFilePath, DEFAULT_MEMORY_BUDGET,
+                Runtime.getRuntime().availableProcessors(), DEFAULT_FILL_FACTOR);
+    }
+
+    public IndexBuilder(String databaseFilePath, long memoryBudget, int threads,
+                        double fillFactor) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + threads);
+        }
+        if (fillFactor <= 0 || fillFactor > 1) {
+            throw new IllegalArgumentException("Invalid fill factor: " + fillFactor);
+        }
+        this.databaseFilePath = databaseFilePath;
+        this.memoryBudget = memoryBudget;
+        this.threads = threads;
+        this.fillFactor = fillFactor;
+    }
+
+    // returns the number of index entries written
+    public long build(String indexName, String table, String column) throws IOException {
+        var tempDir = Files.createTempDirectory("sqlite-index");
+        var pool = Executors.newFixedThreadPool(threads);
+        try {
+            int changeCounter;
+            Schema schema;
+            SortedRuns runs;
+            try (var db = new DB(databaseFilePath)) {
+                pageSize = db.pageSize;
+                var header = readHeader(db.randomAccessFile);
+                checkWritable(header);
+                changeCounter = header.getInt(24);
+                var firstPage = BtreePage.readPage(db.randomAccessFile, pageSize, 1);
+                schema = Schema.loadSchema(firstPage, table, db.textDecoder);
+                checkSchema(firstPage, schema, indexName, column, db.textDecoder);
+                runs = sortEntries(db, schema, column, pool, tempDir);
+            }
+            // the scan ran without locks, every descriptor it used is closed
+            // now since closing one drops all POSIX locks on the file
+            try (var file = new RandomAccessFile(databaseFilePath, "rw");
+                 var lock = file.getChannel().tryLock(BulkLoader.PENDING_BYTE, LOCK_BYTES, false)) {
+                if (lock == null) {
+                    throw new IndexBuildException("database is locked");
+                }
+                var header = readHeader(file);
+                if (header.getInt(24) != changeCounter) {
+                    throw new IndexBuildException("database changed while the index was being built");
+                }
+                var writer = new TreeWriter(file.getChannel(), databasePageCount(file, header));
+                var merged = runs.merge();
+                for (byte[] entry = merged.next(); entry != null; entry = merged.next()) {
+                    writer.add(0, entry, 0);
+                }
+                merged.close();
+                int rootPage = writer.finish();
+                file.getChannel().force(false);
+                // page 1 goes last, a crash before this leaves unused pages
+                // past the end recorded in the header
+                registerIndex(file, indexName, table, column, rootPage, writer.nextPageNumber - 1);
+                file.getChannel().force(true);
+                return runs.entryCount;
+            }
+        } finally {
+            pool.shutdownNow();
+            try (var files = Files.list(tempDir)) {
+                for (var f : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(f);
+                }
+            }
+            Files.deleteIfExists(tempDir);
+        }
+    }
+
+    private static ByteBuffer readHeader(RandomAccessFile file) throws IOException {
+        byte[] headerBytes = new byte[100];
+        file.seek(0);
+        file.readFully(headerBytes);
+        return ByteBuffer.wrap(headerBytes).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private void checkWritable(ByteBuffer header) {
+        if (header.get(18) == 2 || header.get(19) == 2) {
+            throw new IndexBuildException("database is in WAL mode, checkpoint and switch to journal_mode=DELETE first");
+        }
+        if (header.get(20) != 0) {
+            throw new IndexBuildException("databases with reserved bytes per page are not supported");
+        }
+        // new pages would need pointer-map entries and a new largest root
+        // page, and could land on a pointer-map page
+        if (header.getInt(52) != 0) {
+            throw new IndexBuildException("auto-vacuum databases are not supported, VACUUM with auto_vacuum=NONE first");
+        }
+        var journal = new File(databaseFilePath + "-journal");
+        if (journal.exists() && journal.length() > 0) {
+            throw new IndexBuildException("database has a hot journal, open it with SQLite first");
+        }
+    }
+
+    // the page count in the header is only trusted when it was written by
+    // the same transaction as the change counter
+    private int databasePageCount(RandomAccessFile file, ByteBuffer header) throws IOException {
+        int pageCount = header.getInt(28);
+        if (pageCount == 0 || header.getInt(24) != header.getInt(92)) {
+            pageCount = (int) (file.length() / pageSize);
+        }
+        return pageCount;
+    }
+
+    private void checkSchema(BtreePage firstPage, Schema schema, String indexName,
+                             String column, TextDecoder textDecoder) {
+        if (firstPage.btreePageHeader.pageType != 0x0d) {
+            throw new IndexBuildException("sqlite_schema spans more than one page");
+        }
+        firstPage.popCells(textDecoder);
+        for (var record : firstPage.records) {
+            if (indexName.equalsIgnoreCase(String.valueOf(record.getValue(1)))) {
+                throw new IndexBuildException("there is already an object named " + indexName);
+            }
+            if ("table".equals(record.getValue(0)) &&
+                    schema.tableName.equals(record.getValue(2))) {
+                checkCollation(String.valueOf(record.getValue(4)), column);
+            }
+        }
+        if (schema.columnList.stream().noneMatch(c -> c.name().equals(column))) {
+            throw new IndexBuildException("no such column: " + column);
+        }
+        // entries would end with the primary key instead of a rowid
+        if (schema.withoutRowId) {
+            throw new IndexBuildException("indexes on WITHOUT ROWID tables are not supported");
+        }
+    }
+
+    // entries are ordered with memcmp, which is only right for BINARY
+    private static void checkCollation(String tableSql, String column) {
+        var columnDefs = tableSql.substring(tableSql.indexOf('(') + 1, tableSql.lastIndexOf(')'));
+        for (var columnDef : columnDefs.split(",")) {
+            var tokens = columnDef.trim().toUpperCase(Locale.ROOT).split("\\s+");
+            if (!tokens[0].equalsIgnoreCase(column)) {
+                continue;
+            }
+            for (int i = 1; i + 1 < tokens.length; ++i) {
+                if (tokens[i].equals("COLLATE") && !tokens[i + 1].equals("BINARY")) {
+                    throw new IndexBuildException("collation " + tokens[i + 1] + " is not supported");
+                }
+            }
+        }
+    }
+
+    // index records are [key, rowid], the key keeps the serial type and bytes
+    // it has in the table so text stays in the database encoding
+    static byte[] indexRecord(Record row, long rowId, int keyColumn, boolean rowIdAlias) {
+        int keyType;
+        int keyOffset = 0;
+        if (rowIdAlias) {
+            keyType = Record.serialTypeFor(rowId);
+        } else if (keyColumn < row.getSerialTypes().length) {
+            keyType = row.getSerialType(keyColumn);
+            keyOffset = row.getValueOffset(keyColumn);
+        } else {
+            keyType = 0; // column added after the row was written
+        }
+        int rowIdType = Record.serialTypeFor(rowId);
+        int keyLength = Record.contentSize(keyType);
+        int headerSize = 1 + VarInt.sizeOf(keyType) + VarInt.sizeOf(rowIdType);
+        var buffer = ByteBuffer.allocate(headerSize + keyLength + Record.contentSize(rowIdType));
+        VarInt.write(buffer, headerSize);
+        VarInt.write(buffer, keyType);
+        VarInt.write(buffer, rowIdType);
+        if (rowIdAlias) {
+            Record.putInteger(buffer, keyType, rowId);
+        } else {
+            buffer.put(buffer.position(), row.getPayload(), keyOffset, keyLength);
+            buffer.position(buffer.position() + keyLength);
+        }
+        Record.putInteger(buffer, rowIdType, rowId);
+        return buffer.array();
+    }
+
+    private SortedRuns sortEntries(DB db, Schema schema, String column,
+                                   ExecutorService pool, Path tempDir) throws IOException {
+        var keyColumn = schema.columnList.stream()
+                .filter(c -> c.name().equals(column)).findFirst().orElseThrow();
+        int maxLocal = Cell.maxLocalPayload(pageSize, (byte) 0x0a);
+        long chunkBudget = Math.max(1 << 20, memoryBudget / (threads + 1));
+        // at most one chunk per thread is waiting to be sorted while the scan
+        // fills the next one
+        var inFlight = new Semaphore(threads);
+        var runs = new SortedRuns();
+        var query = Query.parse("SELECT " + column + " FROM " + schema.tableName);
+        db.streamQuery(query, new RowConsumer() {
+            long chunkBytes;
+
+            @Override
+            public void accept(long rowId, Record record) throws IOException {
+                byte[] entry = indexRecord(record, rowId, keyColumn.index(), keyColumn.isPK());
+                if (entry.length > maxLocal) {
+                    throw new IndexBuildException("key of row " + rowId +
+                            " needs overflow pages, which are not supported");
+                }
+                runs.tail.add(entry);
+                chunkBytes += entry.length + ENTRY_OVERHEAD;
+                runs.entryCount++;
+                if (chunkBytes >= chunkBudget) {
+                    var full = runs.tail.toArray(new byte[0][]);
+                    runs.tail = new ArrayList<>();
+                    chunkBytes = 0;
+                    inFlight.acquireUninterruptibly();
+                    runs.spilled.add(pool.submit(() -> {
+                        try {
+                            Arrays.sort(full, IndexBuilder::compareEntries);
+                            return spill(full, tempDir);
+                        } finally {
+                            inFlight.release();
+                        }
+                    }));
+                }
+            }
+        });
+        // the last chunk never goes to disk
+        runs.last = runs.tail.toArray(new byte[0][]);
+        Arrays.parallelSort(runs.last, IndexBuilder::compareEntries);
+        return runs;
+    }
+
+    private static Run spill(byte[][] entries, Path tempDir) throws IOException {
+        var path = Files.createTempFile(tempDir, "run", ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(path), 1 << 16))) {
+            for (var entry : entries) {
+                out.writeShort(entry.length);
+                out.write(entry);
+            }
+        }
+        return new Run(path, entries.length);
+    }
+
+    record Run(Path path, int size) {}
+
+    static class SortedRuns {
+        final List<Future<Run>> spilled = new ArrayList<>();
+        List<byte[]> tail = new ArrayList<>();
+        byte[][] last;
+        long entryCount;
+
+        // k-way merge of the spilled runs and the in-memory last chunk
+        Cursor merge() throws IOException {
+            var cursors = new ArrayList<Cursor>();
+            for (var future : spilled) {
+                try {
+                    var run = future.get();
+                    cursors.add(new FileCursor(run));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IndexBuildException("interrupted while sorting", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException io) {
+                        throw io;
+                    }
+                    throw new IndexBuildException("sorting failed", e.getCause());
+                }
+            }
+            cursors.add(new ArrayCursor(last));
+            if (cursors.size() == 1) {
+                return cursors.get(0);
+            }
+            return new MergeCursor(cursors);
+        }
+    }
+
+    // hands out entries in order, null at the end
+    interface Cursor {
+        byte[] next() throws IOException;
+        default void close() throws IOException {}
+    }
+
+    static class ArrayCursor implements Cursor {
+        private final byte[][] entries;
+        private int position;
+
+        ArrayCursor(byte[][] entries) { this.entries = entries; }
+
+        @Override
+        public byte[] next() {
+            return position < entries.length ? entries[position++] : null;
+        }
+    }
+
+    static class FileCursor implements Cursor {
+        private final DataInputStream in;
+        private int remaining;
+
+        FileCursor(Run run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(run.path()), 1 << 16));
+            this.remaining = run.size();
+        }
+
+        @Override
+        public byte[] next() throws IOException {
+            if (remaining == 0) {
+                return null;
+            }
+            remaining--;
+            byte[] entry = new byte[in.readUnsignedShort()];
+            in.readFully(entry);
+            return entry;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    static class MergeCursor implements Cursor {
+        private record Head(byte[] entry, Cursor cursor) {}
+
+        private final List<Cursor> cursors;
+        private final PriorityQueue<Head> heads =
+                new PriorityQueue<>((a, b) -> compareEntries(a.entry, b.entry));
+
+        MergeCursor(List<Cursor> cursors) throws IOException {
+            this.cursors = cursors;
+            for (var cursor : cursors) {
+                var entry = cursor.next();
+                if (entry != null) {
+                    heads.add(new Head(entry, cursor));
+                }
+            }
+        }
+
+        @Override
+        public byte[] next() throws IOException {
+            var head = heads.poll();
+            if (head == null) {
+                return null;
+            }
+            var following = head.cursor.next();
+            if (following != null) {
+                heads.add(new Head(following, head.cursor));
+            }
+            return head.entry;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (var cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    // orders index records by key, then rowid
+    static int compareEntries(byte[] a, byte[] b) {
+        return Record.compareRecords(a, 0, b, 0);
+    }
+
+    // Builds the tree one level at a time from sorted entries: each level
+    // fills a page and, when the next entry does not fit, takes the last
+    // entry back out as the divider passed up to the level above with the
+    // finished page as its left child. Every page keeps at least one cell.
+    private class TreeWriter {
+        private final List<PageBuilder> levels = new ArrayList<>();
+        private final List<byte[]> lastEntries = new ArrayList<>();
+        private final List<Integer> lastChildren = new ArrayList<>();
+        private final OutputStream out;
+        int nextPageNumber;
+
+        TreeWriter(FileChannel channel, int pageCount) throws IOException {
+            this.nextPageNumber = pageCount + 1;
+            channel.position((long) pageCount * pageSize);
+            this.out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 20);
+        }
+
+        void add(int depth, byte[] entry, int leftChild) throws IOException {
+            byte pageType = depth == 0 ? (byte) 0x0a : (byte) 0x02;
+            if (depth == levels.size()) {
+                var page = new PageBuilder(pageSize, fillFactor);
+                page.reset(pageType);
+                levels.add(page);
+                lastEntries.add(null);
+                lastChildren.add(0);
+            }
+            var page = levels.get(depth);
+            var cell = new Cell(pageType, entry.length, entry);
+            cell.leftChildPointer = leftChild;
+            if (!page.fits(Cell.sizeOf(cell)) && page.getCellCount() >= 2) {
+                page.removeLastCell();
+                if (depth > 0) {
+                    page.setRightMostPointer(lastChildren.get(depth));
+                }
+                int pageNumber = writePage(page.finish());
+                page.reset(pageType);
+                add(depth + 1, lastEntries.get(depth), pageNumber);
+            }
+            page.addCell(cell);
+            lastEntries.set(depth, entry);
+            lastChildren.set(depth, leftChild);
+        }
+
+        // the open page of each level becomes the right most child of the
+        // open page above it, the top one is the root
+        int finish() throws IOException {
+            if (levels.isEmpty()) {
+                var page = new PageBuilder(pageSize, fillFactor);
+                page.reset((byte) 0x0a);
+                levels.add(page);
+            }
+            int child = 0;
+            for (int depth = 0; depth < levels.size(); ++depth) {
+                var page = levels.get(depth);
+                if (depth > 0) {
+                    page.setRightMostPointer(child);
+                }
+                child = writePage(page.finish());
+            }
+            out.flush();
+            return child;
+        }
+
+        private int writePage(byte[] page) throws IOException {
+            if (nextPageNumber == BulkLoader.PENDING_BYTE / pageSize + 1) {
+                out.write(new byte[pageSize]);
+                nextPageNumber++;
+            }
+            out.write(page);
+            return nextPageNumber++;
+        }
+    }
+
+    // appends the schema row to page 1 and bumps the counters that tell
+    // SQLite connections to reload the schema
+    private void registerIndex(RandomAccessFile file, String indexName, String table,
+                               String column, int rootPage, int pageCount) throws IOException {
+        byte[] contents = new byte[pageSize];
+        file.seek(0);
+        file.readFully(contents);
+        var page = ByteBuffer.wrap(contents).order(ByteOrder.BIG_ENDIAN);
+        var charset = TextDecoder.charsetFor(page.getInt(56));
+        var firstPage = BtreePage.fromContents(contents.clone(), 1);
+        firstPage.popCells();
+        long rowId = 0;
+        for (var cell : firstPage.cellArray) {
+            rowId = Math.max(rowId, cell.rowId);
+        }
+        String sql = "CREATE INDEX " + indexName + " ON " + table + " (" + column + ")";
+        byte[] record = Record.encode(new Object[] {"index", indexName, table, rootPage, sql}, charset);
+        var cell = new Cell((byte) 0x0d, record.length, rowId + 1, record);
+        int cellSize = Cell.sizeOf(cell);
+        int cellCount = page.getShort(103) & 0xFFFF;
+        int contentStart = page.getShort(105) & 0xFFFF;
+        if (contentStart == 0) {
+            contentStart = 65536;
+        }
+        int pointersEnd = 100 + BtreePageHeader.size((byte) 0x0d) + 2 * cellCount;
+        if (record.length > Cell.maxLocalPayload(pageSize, (byte) 0x0d) ||
+                contentStart - cellSize < pointersEnd + 2) {
+            throw new IndexBuildException("no room for the index on the sqlite_schema page");
+        }
+        contentStart -= cellSize;
+        Cell.writeCell(page.position(contentStart), cell);
+        page.putShort(pointersEnd, (short) contentStart);
+        page.putShort(103, (short) (cellCount + 1));
+        page.putShort(105, (short) contentStart);
+        int changeCounter = page.getInt(24) + 1;
+        page.putInt(24, changeCounter);
+        page.putInt(28, pageCount);
+        page.putInt(40, page.getInt(40) + 1); // schema cookie
+        page.putInt(92, changeCounter);
+        page.putInt(96, BulkLoader.SQLITE_VERSION_NUMBER);
+        file.seek(0);
+        file.write(contents);
+    }
+}
+
+class IndexBuildException extends RuntimeException {
+    public IndexBuildException(String message) {
+        super(message);
+    }
+
+    public IndexBuildException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
@@ -0,0 +1,752 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Pattern;
+
+// Checks a database file the way PRAGMA integrity_check does, without
+// trusting any of it. Every table and index B-tree is walked on a fork/join
+// pool with one task per page, reading pages with positional reads so the
+// workers never share a file position. Each page is checked for its type,
+// cell pointer bounds, overlapping cells, freeblocks and fragmentation, key
+// order against its neighbours and the bounds set by its parent, and the
+// depth of its leaves; overflow chains and the freelist are followed, and
+// with auto-vacuum every page reached is looked up in the pointer map. One
+// bit per page records which pages were reached, so a page reached twice or
+// never is reported. Memory stays at that bitmap, the pointer map and the
+// tasks on the paths being walked, whatever the size of the file.
+public class IntegrityChecker {
+    static final int MAX_PROBLEMS = 100;
+    // longer index keys are not reassembled from their overflow pages, so
+    // their order is not checked
+    static final int MAX_KEY_SIZE = 1 << 20;
+    private static final byte[] MAGIC = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+    // pointer map entry types
+    static final int PTRMAP_ROOTPAGE = 1;
+    static final int PTRMAP_FREEPAGE = 2;
+    static final int PTRMAP_OVERFLOW1 = 3;
+    static final int PTRMAP_OVERFLOW2 = 4;
+    static final int PTRMAP_BTREE = 5;
+    private static final Pattern NOT_ASCENDING_BINARY =
+            Pattern.compile("\\b(DESC|COLLATE)\\b", Pattern.CASE_INSENSITIVE);
+
+    final String databaseFilePath;
+    final int threads;
+    private FileChannel channel;
+    private WalIndex walIndex;
+    private boolean walFrames;
+    private int pageSize;
+    private int usableSize;
+    private int pageCount;
+    private int pendingBytePage;
+    private int firstFreelistTrunk;
+    private int freelistCount;
+    private boolean autoVacuum;
+    private int pagesPerMap;
+    // the pointer map pages in order, read before the walk
+    private byte[][] pointerMap;
+    private TextDecoder textDecoder;
+    private AtomicLongArray usedPages;
+    private final ConcurrentLinkedQueue<Problem> problems = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger problemCount = new AtomicInteger();
+    private final ThreadLocal<byte[]> pageBuffer = ThreadLocal.withInitial(() -> new byte[pageSize]);
+    private final ThreadLocal<byte[]> overflowBuffer = ThreadLocal.withInitial(() -> new byte[pageSize]);
+
+    record Problem(int pageNumber, String message) {}
+
+    // keys are only compared where the tree is known to be in ascending
+    // BINARY order
+    record Tree(String name, int rootPage, boolean index, boolean checkOrder,
+                AtomicInteger leafDepth) {}
+
+    // the size of a cell on the page and where its payload starts; cells
+    // are never smaller than the four bytes a freeblock needs
+    private record CellInfo(long rowId, int leftChild, long payloadSize,
+                            int payloadStart, int localSize, int cellSize) {}
+
+    public IntegrityChecker(String databaseFilePath) {
+        this(databaseFilePath, Runtime.getRuntime().availableProcessors());
+    }
+
+    public IntegrityChecker(String databaseFilePath, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Invalid thread count: " + threads);
+        }
+        this.databaseFilePath = databaseFilePath;
+        this.threads = threads;
+    }
+
+    // "ok", or one line per problem found
+    public List<String> check() throws IOException {
+        var pool = new ForkJoinPool(threads);
+        try (var file = FileChannel.open(Path.of(databaseFilePath), StandardOpenOption.READ)) {
+            channel = file;
+            if (readHeader()) {
+                usedPages = new AtomicLongArray(pageCount / 64 + 1);
+                readPointerMap();
+                var tasks = new ArrayList<ForkJoinTask<?>>();
+                for (var tree : readSchema()) {
+                    tasks.add(pool.submit(new PageTask(tree, tree.rootPage(), 1, 1,
+                            null, null, null, null)));
+                }
+                for (var task : tasks) {
+                    task.join();
+                }
+                checkFreelist();
+                markPointerMapPages();
+                checkUnusedPages();
+            }
+        } finally {
+            pool.shutdownNow();
+            if (walIndex != null) {
+                walIndex.close();
+            }
+        }
+        return format();
+    }
+
+    private boolean readHeader() throws IOException {
+        if (channel.size() < 100) {
+            report(0, "file is too small to be a database");
+            return false;
+        }
+        byte[] headerBytes = new byte[100];
+        readFully(ByteBuffer.wrap(headerBytes), 0);
+        if (!Arrays.equals(headerBytes, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            report(0, "file is not a database");
+            return false;
+        }
+        var header = ByteBuffer.wrap(headerBytes).order(ByteOrder.BIG_ENDIAN);
+        pageSize = header.getShort(16) & 0xFFFF;
+        if (pageSize == 1) {
+            pageSize = 65536;
+        }
+        if (pageSize < 512 || Integer.bitCount(pageSize) != 1) {
+            report(0, "invalid page size " + pageSize);
+            return false;
+        }
+        walIndex = new WalIndex(databaseFilePath, pageSize);
+        walIndex.refresh();
+        walFrames = walIndex.getDatabaseSizeInPages() > 0;
+        // a committed transaction in the WAL may have rewritten the header
+        byte[] walFirstPage = walFrames ? walIndex.readPageContents(1) : null;
+        if (walFirstPage != null) {
+            header = ByteBuffer.wrap(walFirstPage, 0, 100).order(ByteOrder.BIG_ENDIAN);
+        }
+        usableSize = pageSize - (header.get(20) & 0xFF);
+        if (usableSize < 480) {
+            report(0, "usable page size " + usableSize + " is too small");
+            return false;
+        }
+        try {
+            textDecoder = new TextDecoder(TextDecoder.charsetFor(header.getInt(56)), false);
+        } catch (IllegalArgumentException e) {
+            report(0, e.getMessage());
+            return false;
+        }
+        long filePages = channel.size() / pageSize;
+        int headerPages = header.getInt(28);
+        if (walFrames) {
+            pageCount = walIndex.getDatabaseSizeInPages();
+        } else if (headerPages > 0 && header.getInt(24) == header.getInt(92)) {
+            pageCount = headerPages;
+            if (headerPages > filePages) {
+                report(0, "header records " + headerPages + " pages but the file holds " + filePages);
+                pageCount = (int) filePages;
+            }
+        } else {
+            pageCount = (int) Math.min(filePages, Integer.MAX_VALUE);
+        }
+        pendingBytePage = (int) (BulkLoader.PENDING_BYTE / pageSize) + 1;
+        firstFreelistTrunk = header.getInt(32);
+        freelistCount = header.getInt(36);
+        autoVacuum = header.getInt(52) != 0;
+        return true;
+    }
+
+    // the schema tree is read on its own first to find the other roots, it
+    // is checked like every other tree afterwards
+    private List<Tree> readSchema() {
+        var trees = new ArrayList<Tree>();
+        trees.add(new Tree("sqlite_schema", 1, false, true, new AtomicInteger(-1)));
+        List<Record> rows = new ArrayList<>();
+        try {
+            collectSchemaRows(1, 0, rows);
+        } catch (IOException | RuntimeException e) {
+            report(1, "sqlite_schema cannot be read: " + e.getMessage());
+        }
+        var tableSql = new HashMap<String, String>();
+        for (var row : rows) {
+            if ("table".equals(row.getValue(0)) && row.getValue(4) != null) {
+                tableSql.put(String.valueOf(row.getValue(2)), String.valueOf(row.getValue(4)));
+            }
+        }
+        for (var row : rows) {
+            if (!(row.getValue(3) instanceof Number root) || root.intValue() == 0) {
+                continue; // views and triggers have no tree
+            }
+            var type = String.valueOf(row.getValue(0));
+            var name = String.valueOf(row.getValue(1));
+            var sql = row.getValue(4) == null ? null : String.valueOf(row.getValue(4));
+            if (type.equals("table")) {
+                boolean withoutRowId = sql != null && Schema.isWithoutRowId(sql);
+                trees.add(new Tree(name, root.intValue(), withoutRowId,
+                        !withoutRowId || ascendingBinary(sql), new AtomicInteger(-1)));
+            } else if (type.equals("index")) {
+                // indexes behind constraints have no sql, they follow the
+                // declarations of the table
+                var definition = sql != null ? sql : tableSql.get(String.valueOf(row.getValue(2)));
+                trees.add(new Tree(name, root.intValue(), true,
+                        ascendingBinary(definition), new AtomicInteger(-1)));
+            }
+        }
+        return trees;
+    }
+
+    private static boolean ascendingBinary(String sql) {
+        return sql != null && !NOT_ASCENDING_BINARY.matcher(sql).find();
+    }
+
+    private void collectSchemaRows(int pageNumber, int depth, List<Record> rows)
+            throws IOException {
+        if (depth > 20 || pageNumber < 1 || pageNumber > pageCount) {
+            throw new IllegalStateException("bad schema page " + pageNumber);
+        }
+        byte[] page = new byte[pageSize];
+        readPage(pageNumber, page);
+        int header = pageNumber == 1 ? 100 : 0;
+        int pageType = page[header] & 0xFF;
+        int cellCount = getShort(page, header + 3);
+        boolean leaf = pageType == 0x0d;
+        int pointers = header + (leaf ? 8 : 12);
+        for (int i = 0; i < cellCount; ++i) {
+            var cell = parseCell(page, getShort(page, pointers + 2 * i), pageType);
+            if (leaf) {
+                byte[] payload = new byte[(int) cell.payloadSize()];
+                System.arraycopy(page, cell.payloadStart(), payload, 0, cell.localSize());
+                if (cell.localSize() < cell.payloadSize()) {
+                    readOverflow(getInt(page, cell.payloadStart() + cell.localSize()),
+                            payload, cell.localSize());
+                }
+                rows.add(Record.readRecord(ByteBuffer.wrap(payload), textDecoder));
+            } else {
+                collectSchemaRows(cell.leftChild(), depth + 1, rows);
+            }
+        }
+        if (!leaf) {
+            collectSchemaRows(getInt(page, header + 8), depth + 1, rows);
+        }
+    }
+
+    private void readOverflow(int pageNumber, byte[] payload, int offset) throws IOException {
+        byte[] page = new byte[pageSize];
+        while (offset < payload.length) {
+            readPage(pageNumber, page);
+            int chunk = Math.min(payload.length - offset, usableSize - 4);
+            System.arraycopy(page, 4, payload, offset, chunk);
+            offset += chunk;
+            pageNumber = getInt(page, 0);
+        }
+    }
+
+    private class PageTask extends RecursiveAction {
+        final Tree tree;
+        final int pageNumber;
+        final int parentPage;
+        final int depth;
+        // keys on this page must be greater than the lower bound and, in a
+        // table, at most the upper bound; index keys are below it
+        final Long lowerRowId;
+        final Long upperRowId;
+        final byte[] lowerKey;
+        final byte[] upperKey;
+
+        PageTask(Tree tree, int pageNumber, int parentPage, int depth,
+                 Long lowerRowId, Long upperRowId, byte[] lowerKey, byte[] upperKey) {
+            this.tree = tree;
+            this.pageNumber = pageNumber;
+            this.parentPage = parentPage;
+            this.depth = depth;
+            this.lowerRowId = lowerRowId;
+            this.upperRowId = upperRowId;
+            this.lowerKey = lowerKey;
+            this.upperKey = upperKey;
+        }
+
+        @Override
+        protected void compute() {
+            if (!claimPage(pageNumber, parentPage, tree.name())) {
+                return;
+            }
+            if (depth == 1) {
+                checkPointerMap(pageNumber, PTRMAP_ROOTPAGE, 0, tree.name());
+            } else {
+                checkPointerMap(pageNumber, PTRMAP_BTREE, parentPage, tree.name());
+            }
+            List<PageTask> children;
+            try {
+                children = checkPage(this);
+            } catch (IOException e) {
+                report(pageNumber, tree.name() + ": cannot read page: " + e.getMessage());
+                return;
+            } catch (RuntimeException e) {
+                report(pageNumber, tree.name() + ": malformed page: " + e);
+                return;
+            }
+            invokeAll(children);
+        }
+    }
+
+    // the children are returned rather than forked here so the page buffer
+    // of this worker is free again before they run
+    private List<PageTask> checkPage(PageTask task) throws IOException {
+        var tree = task.tree;
+        int pageNumber = task.pageNumber;
+        byte[] page = pageBuffer.get();
+        readPage(pageNumber, page);
+        int header = pageNumber == 1 ? 100 : 0;
+        int pageType = page[header] & 0xFF;
+        boolean typeMatches = switch (pageType) {
+            case 0x05, 0x0d -> !tree.index();
+            case 0x02, 0x0a -> tree.index();
+            default -> false;
+        };
+        if (!typeMatches) {
+            report(pageNumber, tree.name() + ": invalid page type " + pageType +
+                    " in " + (tree.index() ? "an index" : "a table"));
+            return List.of();
+        }
+        boolean leaf = pageType == 0x0d || pageType == 0x0a;
+        int firstFreeblock = getShort(page, header + 1);
+        int cellCount = getShort(page, header + 3);
+        int contentStart = getShort(page, header + 5);
+        if (contentStart == 0) {
+            contentStart = 65536;
+        }
+        int fragmented = page[header + 7] & 0xFF;
+        int pointers = header + (leaf ? 8 : 12);
+        int pointersEnd = pointers + 2 * cellCount;
+        if (pointersEnd > usableSize) {
+            report(pageNumber, tree.name() + ": " + cellCount + " cells do not fit the page");
+            return List.of();
+        }
+        if (contentStart < pointersEnd || contentStart > usableSize) {
+            report(pageNumber, tree.name() + ": cell content area starts at " + contentStart +
+                    ", the cell pointers end at " + pointersEnd);
+            return List.of();
+        }
+        if (leaf) {
+            int expected = tree.leafDepth().compareAndExchange(-1, task.depth);
+            if (expected != -1 && expected != task.depth) {
+                report(pageNumber, tree.name() + ": leaf at depth " + task.depth +
+                        ", other leaves are at depth " + expected);
+            }
+        }
+
+        long[] extents = new long[cellCount + 8];
+        int extentCount = 0;
+        var children = new ArrayList<PageTask>(leaf ? 0 : cellCount + 1);
+        Long lowerRowId = task.lowerRowId;
+        byte[] lowerKey = task.lowerKey;
+        Long previousRowId = null;
+        byte[] previousKey = null;
+        for (int i = 0; i < cellCount; ++i) {
+            int offset = getShort(page, pointers + 2 * i);
+            if (offset < contentStart || offset + 4 > usableSize) {
+                report(pageNumber, tree.name() + ": cell " + i + " at offset " + offset +
+                        " is outside the cell content area");
+                continue;
+            }
+            var cell = parseCell(page, offset, pageType);
+            if (cell.payloadSize() < 0 || cell.payloadStart() + cell.localSize() > usableSize ||
+                    offset + cell.cellSize() > usableSize) {
+                report(pageNumber, tree.name() + ": cell " + i + " extends past the end of the page");
+                continue;
+            }
+            extents[extentCount++] = ((long) offset << 32) | (offset + cell.cellSize());
+
+            byte[] key = null;
+            if (tree.index() && tree.checkOrder() && cell.payloadSize() <= MAX_KEY_SIZE) {
+                key = new byte[(int) cell.payloadSize()];
+                System.arraycopy(page, cell.payloadStart(), key, 0, cell.localSize());
+            }
+            if (cell.localSize() < cell.payloadSize()) {
+                int firstOverflow = getInt(page, cell.payloadStart() + cell.localSize());
+                if (!walkOverflow(tree, pageNumber, firstOverflow,
+                        cell.payloadSize() - cell.localSize(), key, cell.localSize())) {
+                    key = null;
+                }
+            }
+
+            if (!tree.index()) {
+                long rowId = cell.rowId();
+                if (previousRowId != null && (leaf ? rowId <= previousRowId : rowId < previousRowId)) {
+                    report(pageNumber, tree.name() + ": rowid " + rowId + " out of order");
+                }
+                if ((lowerRowId != null && rowId <= lowerRowId) ||
+                        (task.upperRowId != null && rowId > task.upperRowId)) {
+                    report(pageNumber, tree.name() + ": rowid " + rowId +
+                            " outside the range of its parent page " + task.parentPage);
+                }
+                previousRowId = rowId;
+            } else if (key != null) {
+                try {
+                    if (previousKey != null && Record.compareRecords(previousKey, 0, key, 0) >= 0) {
+                        report(pageNumber, tree.name() + ": cell " + i + " out of order");
+                    }
+                    if ((lowerKey != null && Record.compareRecords(key, 0, lowerKey, 0) <= 0) ||
+                            (task.upperKey != null && Record.compareRecords(key, 0, task.upperKey, 0) >= 0)) {
+                        report(pageNumber, tree.name() + ": cell " + i +
+                                " outside the range of its parent page " + task.parentPage);
+                    }
+                } catch (RuntimeException e) {
+                    report(pageNumber, tree.name() + ": cell " + i + " holds a malformed record");
+                    key = null;
+                }
+                previousKey = key;
+            }
+
+            if (!leaf) {
+                children.add(new PageTask(tree, cell.leftChild(), pageNumber, task.depth + 1,
+                        lowerRowId, tree.index() ? null : cell.rowId(), lowerKey, key));
+                lowerRowId = cell.rowId();
+                lowerKey = key;
+            }
+        }
+        if (!leaf) {
+            children.add(new PageTask(tree, getInt(page, header + 8), pageNumber, task.depth + 1,
+                    lowerRowId, task.upperRowId, lowerKey, task.upperKey));
+        }
+
+        // freeblocks are chained in increasing offset order
+        int freeblock = firstFreeblock;
+        while (freeblock != 0) {
+            if (freeblock < contentStart || freeblock + 4 > usableSize) {
+                report(pageNumber, tree.name() + ": freeblock at offset " + freeblock +
+                        " is outside the cell content area");
+                break;
+            }
+            int next = getShort(page, freeblock);
+            int size = getShort(page, freeblock + 2);
+            if (size < 4 || freeblock + size > usableSize) {
+                report(pageNumber, tree.name() + ": freeblock at offset " + freeblock +
+                        " has invalid size " + size);
+                break;
+            }
+            if (extentCount == extents.length) {
+                extents = Arrays.copyOf(extents, extentCount * 2);
+            }
+            extents[extentCount++] = ((long) freeblock << 32) | (freeblock + size);
+            if (next != 0 && next <= freeblock + size) {
+                report(pageNumber, tree.name() + ": freeblocks out of order at offset " + next);
+                break;
+            }
+            freeblock = next;
+        }
+
+        // cells and freeblocks must tile the content area, the gaps left are
+        // the fragmented bytes the header counts
+        Arrays.sort(extents, 0, extentCount);
+        int coveredEnd = contentStart;
+        int gaps = 0;
+        boolean overlap = false;
+        for (int i = 0; i < extentCount; ++i) {
+            int start = (int) (extents[i] >>> 32);
+            int end = (int) extents[i];
+            if (start < coveredEnd) {
+                report(pageNumber, tree.name() + ": cells or freeblocks overlap at offset " + start);
+                overlap = true;
+                break;
+            }
+            gaps += start - coveredEnd;
+            coveredEnd = end;
+        }
+        gaps += usableSize - coveredEnd;
+        if (!overlap && gaps != fragmented) {
+            report(pageNumber, tree.name() + ": fragmentation of " + gaps +
+                    " bytes reported as " + fragmented);
+        }
+        return children;
+    }
+
+    private CellInfo parseCell(byte[] page, int offset, int pageType) {
+        int position = offset;
+        int leftChild = 0;
+        if (pageType == 0x05 || pageType == 0x02) {
+            leftChild = getInt(page, position);
+            position += 4;
+        }
+        if (pageType == 0x05) {
+            long rowId = VarInt.read(page, position);
+            position += VarInt.length(page, position);
+            return new CellInfo(rowId, leftChild, 0, position, 0, Math.max(4, position - offset));
+        }
+        long payloadSize = VarInt.read(page, position);
+        position += VarInt.length(page, position);
+        long rowId = 0;
+        if (pageType == 0x0d) {
+            rowId = VarInt.read(page, position);
+            position += VarInt.length(page, position);
+        }
+        if (payloadSize < 0 || payloadSize > Integer.MAX_VALUE) {
+            return new CellInfo(rowId, leftChild, -1, position, 0, 0);
+        }
+        int localSize = localPayload(payloadSize, pageType);
+        int size = position - offset + localSize + (localSize < payloadSize ? 4 : 0);
+        return new CellInfo(rowId, leftChild, payloadSize, position, localSize, Math.max(4, size));
+    }
+
+    // payloads up to maxLocal stay on the page; longer ones keep between
+    // minLocal and maxLocal bytes, chosen so the overflow fills whole pages
+    private int localPayload(long payloadSize, int pageType) {
+        int maxLocal = Cell.maxLocalPayload(usableSize, (byte) pageType);
+        int minLocal = ((usableSize - 12) * 32 / 255) - 23;
+        if (payloadSize <= maxLocal) {
+            return (int) payloadSize;
+        }
+        long surplus = minLocal + (payloadSize - minLocal) % (usableSize - 4);
+        return (int) (surplus <= maxLocal ? surplus : minLocal);
+    }
+
+    // false when the chain is broken, key then misses its tail
+    private boolean walkOverflow(Tree tree, int cellPage, int firstPage, long remaining,
+                                 byte[] key, int keyOffset) throws IOException {
+        byte[] page = overflowBuffer.get();
+        int pageNumber = firstPage;
+        int previous = cellPage;
+        while (remaining > 0) {
+            if (pageNumber == 0) {
+                report(previous, tree.name() + ": overflow chain from page " + cellPage +
+                        " ends " + remaining + " bytes early");
+                return false;
+            }
+            if (!claimPage(pageNumber, previous, tree.name() + " overflow")) {
+                return false;
+            }
+            checkPointerMap(pageNumber, previous == cellPage ? PTRMAP_OVERFLOW1 : PTRMAP_OVERFLOW2,
+                    previous, tree.name() + " overflow");
+            readPage(pageNumber, page);
+            int chunk = (int) Math.min(remaining, usableSize - 4);
+            if (key != null) {
+                System.arraycopy(page, 4, key, keyOffset, chunk);
+                keyOffset += chunk;
+            }
+            remaining -= chunk;
+            previous = pageNumber;
+            pageNumber = getInt(page, 0);
+        }
+        if (pageNumber != 0) {
+            report(previous, tree.name() + ": overflow chain from page " + cellPage +
+                    " continues past the end of the payload");
+        }
+        return true;
+    }
+
+    // trunk pages hold the next trunk, a count and that many leaf pages
+    private void checkFreelist() throws IOException {
+        byte[] page = new byte[pageSize];
+        int maxLeaves = usableSize / 4 - 2;
+        long found = 0;
+        int trunk = firstFreelistTrunk;
+        int previous = 1;
+        while (trunk != 0) {
+            if (!claimPage(trunk, previous, "freelist trunk")) {
+                break;
+            }
+            checkPointerMap(trunk, PTRMAP_FREEPAGE, 0, "freelist trunk");
+            found++;
+            readPage(trunk, page);
+            int leaves = getInt(page, 4);
+            if (leaves < 0 || leaves > maxLeaves) {
+                report(trunk, "freelist trunk lists " + leaves + " pages, at most " +
+                        maxLeaves + " fit");
+                break;
+            }
+            for (int i = 0; i < leaves; ++i) {
+                int leaf = getInt(page, 8 + 4 * i);
+                if (claimPage(leaf, trunk, "freelist leaf")) {
+                    checkPointerMap(leaf, PTRMAP_FREEPAGE, 0, "freelist leaf");
+                }
+                found++;
+            }
+            previous = trunk;
+            trunk = getInt(page, 0);
+        }
+        if (found != freelistCount) {
+            report(0, "freelist size is " + freelistCount + " but " + found +
+                    " pages are on the list");
+        }
+    }
+
+    // with auto-vacuum every (usable / 5 + 1)th page from page 2 is a
+    // pointer map page, holding a type and parent page for each page after
+    // it up to the next one
+    private void readPointerMap() throws IOException {
+        if (!autoVacuum) {
+            return;
+        }
+        pagesPerMap = usableSize / 5 + 1;
+        var maps = new ArrayList<byte[]>();
+        for (int mapPage = 2; mapPage <= pageCount; mapPage = pointerMapPage(mapPage + pagesPerMap)) {
+            byte[] page = new byte[pageSize];
+            readPage(mapPage, page);
+            maps.add(page);
+        }
+        pointerMap = maps.toArray(new byte[0][]);
+    }
+
+    // the pointer map page holding the entry of a page, or the page itself
+    // when it is one
+    private int pointerMapPage(int pageNumber) {
+        int mapPage = (pageNumber - 2) / pagesPerMap * pagesPerMap + 2;
+        return mapPage == pendingBytePage ? mapPage + 1 : mapPage;
+    }
+
+    private void checkPointerMap(int pageNumber, int type, int parent, String what) {
+        if (pointerMap == null || pageNumber < 3) {
+            return;
+        }
+        int mapPage = pointerMapPage(pageNumber);
+        int offset = 5 * (pageNumber - mapPage - 1);
+        if (offset < 0) {
+            return; // a tree page on a pointer map page, see markPointerMapPages
+        }
+        byte[] map = pointerMap[(pageNumber - 2) / pagesPerMap];
+        int actualType = map[offset] & 0xFF;
+        int actualParent = getInt(map, offset + 1);
+        if (actualType != type || actualParent != parent) {
+            report(pageNumber, what + ": pointer map entry on page " + mapPage + " is (" +
+                    actualType + ", " + actualParent + "), expected (" + type + ", " + parent + ")");
+        }
+    }
+
+    // claimed last, a page already reached is a tree or freelist page
+    // written over the pointer map
+    private void markPointerMapPages() {
+        if (pointerMap == null) {
+            return;
+        }
+        for (int mapPage = 2; mapPage <= pageCount; mapPage = pointerMapPage(mapPage + pagesPerMap)) {
+            if (isUsed(mapPage)) {
+                report(mapPage, "tree or freelist page overlaps pointer-map page " + mapPage);
+            } else {
+                claimPage(mapPage, 0, "pointer map");
+            }
+        }
+    }
+
+    private boolean isUsed(int pageNumber) {
+        return (usedPages.get((pageNumber - 1) >>> 6) & (1L << ((pageNumber - 1) & 63))) != 0;
+    }
+
+    private void checkUnusedPages() {
+        for (int word = 0; word < usedPages.length(); ++word) {
+            long used = usedPages.get(word);
+            if (used == -1L) {
+                continue;
+            }
+            for (int bit = 0; bit < 64; ++bit) {
+                int pageNumber = word * 64 + bit + 1;
+                if (pageNumber > pageCount) {
+                    return;
+                }
+                if ((used & (1L << bit)) == 0 && pageNumber != pendingBytePage) {
+                    report(pageNumber, "never used");
+                }
+            }
+        }
+    }
+
+    private boolean claimPage(int pageNumber, int referencedFrom, String what) {
+        if (pageNumber < 1 || pageNumber > pageCount) {
+            report(referencedFrom, what + ": reference to page " + pageNumber +
+                    " outside the database");
+            return false;
+        }
+        if (pageNumber == pendingBytePage) {
+            report(referencedFrom, what + ": reference to the pending-byte page " + pageNumber);
+            return false;
+        }
+        int word = (pageNumber - 1) >>> 6;
+        long bit = 1L << ((pageNumber - 1) & 63);
+        while (true) {
+            long used = usedPages.get(word);
+            if ((used & bit) != 0) {
+                report(pageNumber, what + ": page referenced more than once, again from page " +
+                        referencedFrom);
+                return false;
+            }
+            if (usedPages.compareAndSet(word, used, used | bit)) {
+                return true;
+            }
+        }
+    }
+
+    private void readPage(int pageNumber, byte[] page) throws IOException {
+        if (walFrames) {
+            byte[] walPage = walIndex.readPageContents(pageNumber);
+            if (walPage != null) {
+                System.arraycopy(walPage, 0, page, 0, pageSize);
+                return;
+            }
+        }
+        readFully(ByteBuffer.wrap(page, 0, pageSize), (long) (pageNumber - 1) * pageSize);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        long start = position - buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, start + buffer.position()) < 0) {
+                throw new EOFException("page at offset " + position + " is past the end of the file");
+            }
+        }
+    }
+
+    private void report(int pageNumber, String message) {
+        if (problemCount.incrementAndGet() <= MAX_PROBLEMS) {
+            problems.add(new Problem(pageNumber, message));
+        }
+    }
+
+    private List<String> format() {
+        if (problems.isEmpty()) {
+            return List.of("ok");
+        }
+        var sorted = new ArrayList<>(problems);
+        sorted.sort(Comparator.comparingInt(Problem::pageNumber).thenComparing(Problem::message));
+        var lines = new ArrayList<String>();
+        for (var problem : sorted) {
+            lines.add(problem.pageNumber() > 0
+                    ? "Page " + problem.pageNumber() + ": " + problem.message()
+                    : problem.message());
+        }
+        if (problemCount.get() > MAX_PROBLEMS) {
+            lines.add("... " + (problemCount.get() - MAX_PROBLEMS) + " more problems");
+        }
+        return lines;
+    }
+
+    private static int getShort(byte[] page, int offset) {
+        return ((page[offset] & 0xFF) << 8) | (page[offset + 1] & 0xFF);
+    }
+
+    private static int getInt(byte[] page, int offset) {
+        return ((page[offset] & 0xFF) << 24) | ((page[offset + 1] & 0xFF) << 16) |
+                ((page[offset + 2] & 0xFF) << 8) | (page[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Pattern;
+
+// Replays a file of queries, one per line, from a number of platform or
+// virtual threads. With a target rate every query has a start time fixed
+// in advance and its latency runs from then, so a stall shows up in the
+// queries that queued behind it instead of being hidden by the workers
+// waiting (coordinated omission). Latencies go into log-linear histograms,
+// overall and per query shape, together with the pages each query read.
+//
+// A DB is not thread safe: by default each worker opens its own, shared
+// runs every query through one DB under a lock, which shows what handing
+// one connection around costs in the tail.
+public class LoadReplay {
+    private static final Pattern STRING_LITERAL = Pattern.compile("'[^']*'");
+
+    final String databaseFilePath;
+    final List<String> queries;
+    int threads = 1;
+    boolean virtualThreads;
+    boolean shared;
+    // queries per second over all workers, 0 runs them back to back
+    double rate;
+    long count;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final Map<String, Shape> shapes = new ConcurrentHashMap<>();
+    private final AtomicLong next = new AtomicLong();
+    private final LongAdder errors = new LongAdder();
+    private volatile String firstError;
+    private long elapsedNanos;
+
+    private static class Shape {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        final LongAdder pages = new LongAdder();
+        final LongAdder rows = new LongAdder();
+        final LongAdder errors = new LongAdder();
+    }
+
+    // blank lines and -- comments are skipped
+    public LoadReplay(String databaseFilePath, Path queryFile) throws IOException {
+        this.databaseFilePath = databaseFilePath;
+        this.queries = new ArrayList<>();
+        for (var line : Files.readAllLines(queryFile)) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("--")) {
+                queries.add(line);
+            }
+        }
+        if (queries.isEmpty()) {
+            throw new IllegalArgumentException("No queries in " + queryFile);
+        }
+        this.count = queries.size();
+    }
+
+    // threads=N rate=QPS count=N virtual shared
+    public void configure(List<String> options) {
+        for (var option : options) {
+            int eq = option.indexOf('=');
+            var name = eq < 0 ? option : option.substring(0, eq);
+            var value = eq < 0 ? "" : option.substring(eq + 1);
+            switch (name) {
+                case "threads" -> threads = Integer.parseInt(value);
+                case "rate" -> rate = Double.parseDouble(value);
+                case "count" -> count = Long.parseLong(value);
+                case "virtual" -> virtualThreads = true;
+                case "shared" -> shared = true;
+                default -> throw new IllegalArgumentException("Unknown replay option: " + option);
+            }
+        }
+        if (threads < 1 || rate < 0 || count < 1) {
+            throw new IllegalArgumentException("Invalid replay options: " + options);
+        }
+    }
+
+    // the query with its string literals replaced, queries differing only
+    // in the values they look for share a shape
+    static String shapeOf(String sql) {
+        return STRING_LITERAL.matcher(ResultCache.normalize(sql)).replaceAll("?");
+    }
+
+    public void run() throws IOException {
+        DB sharedDB = shared ? new DB(databaseFilePath) : null;
+        var lock = new ReentrantLock();
+        ThreadFactory factory = virtualThreads
+                ? Thread.ofVirtual().name("replay-", 0).factory()
+                : Thread.ofPlatform().name("replay-", 0).factory();
+        var workers = new ArrayList<Future<Void>>();
+        long start = System.nanoTime();
+        try (var executor = Executors.newThreadPerTaskExecutor(factory)) {
+            for (int i = 0; i < threads; ++i) {
+                workers.add(executor.submit(() -> {
+                    worker(sharedDB, lock, start);
+                    return null;
+                }));
+            }
+        } finally {
+            elapsedNanos = System.nanoTime() - start;
+            if (sharedDB != null) {
+                sharedDB.close();
+            }
+        }
+        // failed queries are counted, a worker only fails to open its DB
+        for (var worker : workers) {
+            if (worker.state() == Future.State.FAILED) {
+                throw new IOException("replay worker failed", worker.exceptionNow());
+            }
+        }
+    }
+
+    private void worker(DB sharedDB, ReentrantLock lock, long start) throws IOException {
+        try (var ownDB = sharedDB == null ? new DB(databaseFilePath) : null) {
+            var db = sharedDB != null ? sharedDB : ownDB;
+            long n;
+            while ((n = next.getAndIncrement()) < count) {
+                long intended = rate > 0 ? start + (long) (n * 1e9 / rate) : System.nanoTime();
+                long wait = intended - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                var sql = queries.get((int) (n % queries.size()));
+                var shape = shapes.computeIfAbsent(shapeOf(sql), s -> new Shape());
+                if (sharedDB != null) {
+                    lock.lock();
+                }
+                try {
+                    shape.rows.add(execute(db, sql));
+                    shape.pages.add(db.getLastQueryStats().pagesRead);
+                } catch (IOException | RuntimeException e) {
+                    errors.increment();
+                    shape.errors.increment();
+                    if (firstError == null) {
+                        firstError = sql + ": " + e;
+                    }
+                } finally {
+                    if (sharedDB != null) {
+                        lock.unlock();
+                    }
+                }
+                long latency = System.nanoTime() - intended;
+                latencies.record(latency);
+                shape.latencies.record(latency);
+            }
+        }
+    }
+
+    // rows are counted, not kept
+    private static long execute(DB db, String sql) throws IOException {
+        var query = Query.parse(sql);
+        if (DB.isCountQuery(query)) {
+            db.countRows(query.getTable());
+            return 1;
+        }
+        long[] rows = new long[1];
+        db.streamQuery(query, new RowConsumer() {
+            @Override
+            public void begin(List<Schema.Column> columns) {
+            }
+            @Override
+            public void accept(long rowId, Record record) {
+                rows[0]++;
+            }
+        });
+        return rows[0];
+    }
+
+    public void report(PrintStream out) {
+        long done = latencies.getCount();
+        double seconds = elapsedNanos / 1e9;
+        out.printf(Locale.ROOT, "queries: %d, errors: %d, elapsed: %.3fs, throughput: %.1f/s%s%n",
+                done, errors.sum(), seconds, done / seconds,
+                rate > 0 ? String.format(Locale.ROOT, " (target %.1f/s)", rate) : "");
+        out.printf("workers: %d %s threads, %s%n", threads, virtualThreads ? "virtual" : "platform",
+                shared ? "one shared DB" : "a DB each");
+        out.printf(Locale.ROOT, "latency ms: p50=%.3f p90=%.3f p99=%.3f p999=%.3f max=%.3f mean=%.3f%n",
+                millis(latencies.percentile(50)), millis(latencies.percentile(90)),
+                millis(latencies.percentile(99)), millis(latencies.percentile(99.9)),
+                millis(latencies.getMax()), latencies.getMean() / 1e6);
+        out.printf("%-8s %8s %9s %9s %9s %9s %9s  %s%n",
+                "count", "errors", "p50 ms", "p99 ms", "p999 ms", "pages/q", "rows/q", "shape");
+        for (var entry : new TreeMap<>(shapes).entrySet()) {
+            var shape = entry.getValue();
+            long queries = shape.latencies.getCount();
+            out.printf(Locale.ROOT, "%-8d %8d %9.3f %9.3f %9.3f %9.1f %9.1f  %s%n",
+                    queries, shape.errors.sum(),
+                    millis(shape.latencies.percentile(50)), millis(shape.latencies.percentile(99)),
+                    millis(shape.latencies.percentile(99.9)),
+                    (double) shape.pages.sum() / queries, (double) shape.rows.sum() / queries,
+                    entry.getKey());
+        }
+        if (firstError != null) {
+            out.println("first error: " + firstError);
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    public LatencyHistogram getLatencies() { return latencies; }
+    public long getErrors() { return errors.sum(); }
+}
@@ -1,6 +1,9 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -8,6 +11,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Stack;
 import java.util.logging.Level;
+import java.util.regex.Pattern;
 import java.util.logging.Logger;
 
 import java.io.IOException;
@@ -21,14 +25,54 @@ import java.util.List;
 import java.util.Stack;
 
 public class Main {
+  private static ResultWriter.Mode outputMode = ResultWriter.Mode.LIST;
+  private static final Pattern CREATE_INDEX = Pattern.compile(
+      "CREATE\\s+INDEX\\s+(\\w+)\\s+ON\\s+(\\w+)\\s*\\(\\s*(\\w+)\\s*\\)\\s*;?",
+      Pattern.CASE_INSENSITIVE);
+
   public static void main(String[] args) throws IOException {
-    if (args.length < 2) {
+    // leading options pick the output mode: -list (default), -csv, -tabs, -jsonl
+    int argIndex = 0;
+    while (argIndex < args.length && args[argIndex].startsWith("-")) {
+      outputMode = ResultWriter.parseMode(args[argIndex++]);
+    }
+    if (args.length - argIndex < 2) {
       System.out.println("Missing <database path> and <command>");
       return;
     }
-    String databaseFilePath = args[0];
-    String command = args[1];
+    String databaseFilePath = args[argIndex];
+    String command = args[argIndex + 1];
+    if (command.startsWith(".import ")) {
+      importCsv(databaseFilePath, command);
+      return;
+    }
+    var createIndex = CREATE_INDEX.matcher(command.trim());
+    if (createIndex.matches()) {
+      // writes the file directly, so no DB is kept open while it runs
+      new IndexBuilder(databaseFilePath).build(
+          createIndex.group(1), createIndex.group(2), createIndex.group(3));
+      return;
+    }
+    if (databaseFilePath.contains(",")) {
+      queryShards(List.of(databaseFilePath.split(",")), command);
+      return;
+    }
+    if (command.startsWith(".replay ")) {
+      replay(databaseFilePath, command);
+      return;
+    }
+    if (command.equals(".integrity_check")) {
+      // reads the file on its own, a damaged schema must not stop it
+      for (var line : new IntegrityChecker(databaseFilePath).check()) {
+        System.out.println(line);
+      }
+      return;
+    }
     DB db = new DB(databaseFilePath);
+    if (command.startsWith(".zonemap ")) {
+      buildZoneMap(db, command);
+      return;
+    }
     switch (command) {
       case ".dbinfo" -> {
         try {
@@ -47,8 +91,16 @@ public class Main {
         }
       }
       default -> {
+        if (command.regionMatches(true, 0, "EXPLAIN ", 0, 8)) {
+          try {
+            explainQuery(db, command.substring(8).trim());
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+          return;
+        }
         var query = Query.parse(command);
-        if (query.getColumns().size() == 1 && query.getColumns().get(0).equalsIgnoreCase("count(*)")) {
+        if (DB.isCountQuery(query)) {
           try {
             var c = db.countRows(query.getTable());
             System.out.println(c);
@@ -66,10 +118,98 @@ public class Main {
     }
   }
 
+  // .import FILE TABLE writes a new database file holding FILE as TABLE, the
+  // first row names the columns; -tabs reads tab separated input. Unlike
+  // sqlite3 it cannot add to an existing database, so it refuses one
+  private static void importCsv(String databaseFilePath, String command) throws IOException {
+    String[] parts = command.trim().split("\\s+");
+    if (parts.length != 3) {
+      System.out.println("Usage: .import FILE TABLE");
+      return;
+    }
+    char separator = outputMode == ResultWriter.Mode.TABS ? '\t' : ',';
+    try (var csv = new CsvReader(Files.newBufferedReader(Path.of(parts[1])), separator)) {
+      var columnDefs = new ArrayList<String>();
+      for (var column : csv.getHeader()) {
+        columnDefs.add(column + " TEXT");
+      }
+      String createTableSql = "CREATE TABLE " + parts[2] + " (" + String.join(", ", columnDefs) + ")";
+      new BulkLoader(databaseFilePath).load(parts[2], createTableSql, csv);
+    } catch (FileAlreadyExistsException e) {
+      System.out.println("Error: " + databaseFilePath + " already exists, .import only creates new databases");
+    }
+  }
+
+  // .zonemap TABLE COLUMN... records the range of the columns on every page
+  // of TABLE in <db>.zonemap, which scans filtering on them use to skip pages
+  private static void buildZoneMap(DB db, String command) throws IOException {
+    String[] parts = command.trim().split("\\s+");
+    if (parts.length < 3) {
+      System.out.println("Usage: .zonemap TABLE COLUMN...");
+      return;
+    }
+    var zones = db.buildZoneMap(parts[1], List.of(parts).subList(2, parts.length));
+    System.out.printf("%s: %d pages%n", parts[1], zones.getPageCount());
+  }
+
+  // .replay FILE [threads=N] [rate=QPS] [count=N] [virtual] [shared] runs
+  // the queries in FILE as a load test and prints latency percentiles
+  private static void replay(String databaseFilePath, String command) throws IOException {
+    String[] parts = command.trim().split("\\s+");
+    if (parts.length < 2) {
+      System.out.println("Usage: .replay FILE [threads=N] [rate=QPS] [count=N] [virtual] [shared]");
+      return;
+    }
+    var replay = new LoadReplay(databaseFilePath, Path.of(parts[1]));
+    replay.configure(List.of(parts).subList(2, parts.length));
+    replay.run();
+    replay.report(System.out);
+  }
+
+  // EXPLAIN QUERY PLAN <sql> prints the chosen access path with estimates,
+  // EXPLAIN ANALYZE <sql> also runs the query and prints what it cost
+  private static void explainQuery(DB db, String explained) throws IOException {
+    boolean analyze = false;
+    if (explained.regionMatches(true, 0, "QUERY PLAN ", 0, 11)) {
+      explained = explained.substring(11).trim();
+    } else if (explained.regionMatches(true, 0, "ANALYZE ", 0, 8)) {
+      explained = explained.substring(8).trim();
+      analyze = true;
+    }
+    var plan = db.explain(Query.parse(explained), analyze);
+    for (var line : plan.format()) {
+      System.out.println(line);
+    }
+  }
+
+  // a comma separated list of files is queried as shards of one database,
+  // only SELECT and count(*) are supported across them
+  private static void queryShards(List<String> databaseFilePaths, String command) throws IOException {
+    try (var shards = new ShardedDB(databaseFilePaths)) {
+      var query = Query.parse(command);
+      if (DB.isCountQuery(query)) {
+        System.out.println(shards.countRows(query.getTable()));
+        return;
+      }
+      System.out.flush();
+      var writer = new ResultWriter(new FileOutputStream(FileDescriptor.out), outputMode);
+      try {
+        shards.streamQuery(query, writer);
+      } finally {
+        writer.flush();
+      }
+    }
+  }
+
   private static void executeQuery(DB db, Query query) throws IOException {
-    var result = db.runQuery(query);
-    for (var res : result) {
-      System.out.println(String.join("|", res));
+    // write to the file descriptor directly, System.out locks and flushes
+    // per line
+    System.out.flush();
+    var writer = new ResultWriter(new FileOutputStream(FileDescriptor.out), outputMode);
+    try {
+      db.streamQuery(query, writer);
+    } finally {
+      writer.flush();
     }
   }
 }
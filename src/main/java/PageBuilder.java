@@ -0,0 +1,97 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Lays out one B-tree page the way SQLite does: header and cell pointer
+// array at the front, cell contents packed from the end of the page down.
+class PageBuilder {
+    final int pageSize;
+    final double fillFactor;
+    private final byte[] page;
+    private final ByteBuffer buffer;
+    private int headerOffset;
+    private byte pageType;
+    private int[] cellPointers = new int[64];
+    private int cellCount;
+    private int contentStart;
+    private int rightMostPointer;
+
+    PageBuilder(int pageSize, double fillFactor) {
+        this.pageSize = pageSize;
+        this.fillFactor = fillFactor;
+        this.page = new byte[pageSize];
+        this.buffer = ByteBuffer.wrap(page).order(ByteOrder.BIG_ENDIAN);
+    }
+
+    // page 1 starts after the 100 byte database header
+    void reset(byte pageType, int headerOffset) {
+        this.pageType = pageType;
+        this.headerOffset = headerOffset;
+        this.cellCount = 0;
+        this.contentStart = pageSize;
+        this.rightMostPointer = 0;
+        Arrays.fill(page, (byte) 0);
+    }
+
+    void reset(byte pageType) {
+        reset(pageType, 0);
+    }
+
+    int getCellCount() { return cellCount; }
+    boolean isEmpty() { return cellCount == 0; }
+
+    private int usedBytes(int extraCells, int extraContent) {
+        return headerOffset + BtreePageHeader.size(pageType)
+                + 2 * (cellCount + extraCells)
+                + (pageSize - contentStart) + extraContent;
+    }
+
+    // an empty page always takes one cell, after that the page is filled up
+    // to the fill factor
+    boolean fits(int cellSize) {
+        int used = usedBytes(1, cellSize);
+        if (used > pageSize) {
+            return false;
+        }
+        return cellCount == 0 || used <= pageSize * fillFactor;
+    }
+
+    void addCell(Cell cell) {
+        int size = Cell.sizeOf(cell);
+        if (usedBytes(1, size) > pageSize) {
+            throw new IllegalStateException("Cell of " + size + " bytes does not fit the page");
+        }
+        contentStart -= size;
+        buffer.position(contentStart);
+        Cell.writeCell(buffer, cell);
+        if (cellCount == cellPointers.length) {
+            cellPointers = Arrays.copyOf(cellPointers, cellCount * 2);
+        }
+        cellPointers[cellCount++] = contentStart;
+    }
+
+    // cells are packed downwards, so the last cell ends where the one before
+    // it starts
+    void removeLastCell() {
+        int end = cellCount > 1 ? cellPointers[cellCount - 2] : pageSize;
+        Arrays.fill(page, contentStart, end, (byte) 0);
+        contentStart = end;
+        cellCount--;
+    }
+
+    void setRightMostPointer(int rightMostPointer) {
+        this.rightMostPointer = rightMostPointer;
+    }
+
+    byte[] finish() {
+        buffer.position(headerOffset);
+        // a content area starting at 65536 is stored as zero
+        new BtreePageHeader(pageType, (short) 0, (short) cellCount,
+                (short) (contentStart == 65536 ? 0 : contentStart),
+                (byte) 0, rightMostPointer).write(buffer);
+        for (int i = 0; i < cellCount; ++i) {
+            buffer.putShort((short) cellPointers[i]);
+        }
+        return page;
+    }
+}
@@ -0,0 +1,44 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+// Page buffers handed out again once the page they held is released. A
+// full scan releases every page as it moves past it, so however large the
+// table it keeps about one buffer per tree level and stops allocating after
+// the first path down. Direct buffers keep the page images off the heap,
+// where the collector neither scans nor copies them. Not thread safe, like
+// the DB that owns it.
+public class PagePool {
+    // released buffers beyond this are left to the GC
+    static final int MAX_FREE_BUFFERS = 64;
+
+    final int pageSize;
+    final boolean direct;
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private long allocations;
+    private long reuses;
+
+    public PagePool(int pageSize, boolean direct) {
+        this.pageSize = pageSize;
+        this.direct = direct;
+    }
+
+    ByteBuffer acquire() {
+        var buffer = free.pollFirst();
+        if (buffer == null) {
+            allocations++;
+            return direct ? ByteBuffer.allocateDirect(pageSize) : ByteBuffer.allocate(pageSize);
+        }
+        reuses++;
+        return buffer.clear();
+    }
+
+    void release(ByteBuffer buffer) {
+        if (buffer.capacity() == pageSize && buffer.isDirect() == direct &&
+                free.size() < MAX_FREE_BUFFERS) {
+            free.addFirst(buffer);
+        }
+    }
+
+    public long getAllocations() { return allocations; }
+    public long getReuses() { return reuses; }
+}
@@ -0,0 +1,34 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+// disabled by default, one event per page is only useful while chasing a
+// specific query shape
+@Name("sqlite.PageRead")
+@Label("Page Read")
+@Category("SQLite")
+@Enabled(false)
+@StackTrace(false)
+class PageReadEvent extends Event {
+    private static final PageReadEvent PROBE = new PageReadEvent();
+
+    @Label("Page Number")
+    int pageNumber;
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+
+    static void emit(int pageNumber, int bytes) {
+        if (!PROBE.isEnabled()) {
+            return;
+        }
+        PageReadEvent event = new PageReadEvent();
+        event.pageNumber = pageNumber;
+        event.bytes = bytes;
+        event.commit();
+    }
+}
@@ -5,6 +5,7 @@ public class Query {
     String table;
     List<String> columns;
     String filter;
+    String sql;
     public Query(String table, List<String> columns) {
         this.table = table;
         this.columns = columns;
@@ -18,6 +19,7 @@ public class Query {
     public void setTable(String table) { this.table = table; }
     public List<String> getColumns() { return columns; }
     public void setColumns(List<String> columns) { this.columns = columns; }
+    public String getSql() { return sql != null ? sql : toString(); }
     public static Query parse(String sql) {
         String[] parts = sql.split(" ");
         List<String> partsList = Arrays.asList(parts);
@@ -32,13 +34,13 @@ public class Query {
             var columnName = index >= 0 ? col.substring(0, index) : col;
             columns.add(columnName);
         }
+        String filter = "";
         if (whereIndex != -1) {
-            String filter =
-                    String.join(" ", partsList.subList(whereIndex + 1, partsList.size()));
-            return new Query(table, columns, filter);
-        } else {
-            return new Query(table, columns, "");
+            filter = String.join(" ", partsList.subList(whereIndex + 1, partsList.size()));
         }
+        Query query = new Query(table, columns, filter);
+        query.sql = sql;
+        return query;
     }
     private static int getIndexCaseInsensite(String str, List<String> partsList) {
         int index = partsList.indexOf(str);
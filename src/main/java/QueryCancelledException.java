@@ -0,0 +1,6 @@
+// thrown through the traversal once the consumer has stopped wanting rows
+class QueryCancelledException extends RuntimeException {
+    public QueryCancelledException() {
+        super("query cancelled", null, false, false);
+    }
+}
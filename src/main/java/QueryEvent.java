@@ -0,0 +1,33 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("sqlite.Query")
+@Label("Query")
+@Category("SQLite")
+@StackTrace(false)
+public class QueryEvent extends Event {
+    @Label("Query")
+    String query;
+    @Label("Pages Read")
+    long pagesRead;
+    @Label("Bytes Read")
+    @DataAmount
+    long bytesRead;
+    @Label("Cells Decoded")
+    long cellsDecoded;
+    @Label("Records Decoded")
+    long recordsDecoded;
+    @Label("Rows Scanned")
+    long rowsScanned;
+    @Label("Rows Filtered")
+    long rowsFiltered;
+    @Label("Rows Returned")
+    long rowsReturned;
+    @Label("Bytes Allocated")
+    @DataAmount
+    long bytesAllocated;
+}
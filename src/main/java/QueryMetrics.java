@@ -0,0 +1,79 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class QueryMetrics implements QueryMetricsMXBean {
+    static final String OBJECT_NAME = "sqlite:type=QueryMetrics";
+    private static final QueryMetrics INSTANCE = new QueryMetrics();
+    private static volatile boolean registered;
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder pagesRead = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder cellsDecoded = new LongAdder();
+    private final LongAdder recordsDecoded = new LongAdder();
+    private final LongAdder rowsScanned = new LongAdder();
+    private final LongAdder rowsFiltered = new LongAdder();
+    private final LongAdder rowsReturned = new LongAdder();
+    private final LongAdder bytesAllocated = new LongAdder();
+    private final LongAdder totalQueryNanos = new LongAdder();
+
+    public static QueryMetrics getInstance() { return INSTANCE; }
+
+    static void record(QueryStats stats) {
+        INSTANCE.queries.increment();
+        INSTANCE.pagesRead.add(stats.pagesRead);
+        INSTANCE.bytesRead.add(stats.bytesRead);
+        INSTANCE.cellsDecoded.add(stats.cellsDecoded);
+        INSTANCE.recordsDecoded.add(stats.recordsDecoded);
+        INSTANCE.rowsScanned.add(stats.rowsScanned);
+        INSTANCE.rowsFiltered.add(stats.rowsFiltered);
+        INSTANCE.rowsReturned.add(stats.rowsReturned);
+        INSTANCE.bytesAllocated.add(stats.bytesAllocated);
+        INSTANCE.totalQueryNanos.add(stats.elapsedNanos);
+    }
+
+    // exports the aggregated counters through the platform MBean server,
+    // DB calls this when started with -Dsqlite.jmx=true
+    public static synchronized void register() {
+        if (registered) {
+            return;
+        }
+        registered = true;
+        try {
+            var server = ManagementFactory.getPlatformMBeanServer();
+            var name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (JMException e) {
+            // metrics stay readable through getInstance()
+        }
+    }
+
+    @Override public long getQueries() { return queries.sum(); }
+    @Override public long getPagesRead() { return pagesRead.sum(); }
+    @Override public long getBytesRead() { return bytesRead.sum(); }
+    @Override public long getCellsDecoded() { return cellsDecoded.sum(); }
+    @Override public long getRecordsDecoded() { return recordsDecoded.sum(); }
+    @Override public long getRowsScanned() { return rowsScanned.sum(); }
+    @Override public long getRowsFiltered() { return rowsFiltered.sum(); }
+    @Override public long getRowsReturned() { return rowsReturned.sum(); }
+    @Override public long getBytesAllocated() { return bytesAllocated.sum(); }
+    @Override public long getTotalQueryNanos() { return totalQueryNanos.sum(); }
+
+    @Override
+    public void reset() {
+        queries.reset();
+        pagesRead.reset();
+        bytesRead.reset();
+        cellsDecoded.reset();
+        recordsDecoded.reset();
+        rowsScanned.reset();
+        rowsFiltered.reset();
+        rowsReturned.reset();
+        bytesAllocated.reset();
+        totalQueryNanos.reset();
+    }
+}
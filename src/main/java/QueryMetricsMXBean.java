@@ -0,0 +1,13 @@
+public interface QueryMetricsMXBean {
+    long getQueries();
+    long getPagesRead();
+    long getBytesRead();
+    long getCellsDecoded();
+    long getRecordsDecoded();
+    long getRowsScanned();
+    long getRowsFiltered();
+    long getRowsReturned();
+    long getBytesAllocated();
+    long getTotalQueryNanos();
+    void reset();
+}
@@ -0,0 +1,140 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+public class QueryPlan {
+    // without statistics SQLite assumes an equality lookup on an index
+    // matches about ten rows, use the same guess
+    static final long DEFAULT_ROWS_PER_INDEX_KEY = 10;
+
+    public enum AccessPath { FULL_SCAN, ROWID_SEEK, PRIMARY_KEY_SEEK, INDEX_SEARCH }
+
+    // shape of a B-tree estimated from its leftmost root-to-leaf path
+    public record TreeEstimate(int depth, double fanout, int leafCells,
+                               long estimatedRows, long estimatedPages) {}
+
+    Query query;
+    Schema schema;
+    RowPredicate rowPredicate;
+    AccessPath accessPath;
+    Schema.Index index;
+    TreeEstimate tableEstimate;
+    TreeEstimate indexEstimate;
+    long estimatedRows;
+    long estimatedPages;
+    TableStatistics.Source statisticsSource;
+    // page bounds a full scan skips subtrees with, from the zone map sidecar
+    ZoneMap.TableZones zones;
+    // the Bloom filter of the searched B-tree has never seen the key, the
+    // query returns nothing without reading the tree
+    boolean ruledOut;
+    // filled in by EXPLAIN ANALYZE
+    QueryStats actual;
+    long actualRows = -1;
+
+    public QueryPlan(Query query, Schema schema, RowPredicate rowPredicate,
+                     AccessPath accessPath, Schema.Index index) {
+        this.query = query;
+        this.schema = schema;
+        this.rowPredicate = rowPredicate;
+        this.accessPath = accessPath;
+        this.index = index;
+    }
+
+    // cost is counted in pages read, there is no page cache so every lookup
+    // through the table pays for its whole root-to-leaf path
+    void estimate(TreeEstimate tableEstimate, TreeEstimate indexEstimate,
+                  long tableRows, double matchingRows, TableStatistics.Source source) {
+        this.tableEstimate = tableEstimate;
+        this.indexEstimate = indexEstimate;
+        this.statisticsSource = source;
+        switch (accessPath) {
+            case FULL_SCAN -> {
+                estimatedRows = tableRows;
+                // the leftmost path guessed the page count, scale it to the
+                // row count the statistics give
+                estimatedPages = tableEstimate.estimatedRows() > 0
+                        ? Math.max(1, Math.round((double) tableEstimate.estimatedPages()
+                                * tableRows / tableEstimate.estimatedRows()))
+                        : tableEstimate.estimatedPages();
+            }
+            case ROWID_SEEK -> {
+                estimatedRows = Math.round(Math.ceil(matchingRows));
+                estimatedPages = tableEstimate.depth();
+            }
+            case PRIMARY_KEY_SEEK -> {
+                // a WITHOUT ROWID table is its own index, the matching rows
+                // are read from the leaves the seek lands on
+                estimatedRows = Math.round(Math.ceil(matchingRows));
+                long leaves = (estimatedRows + Math.max(1, tableEstimate.leafCells()) - 1)
+                        / Math.max(1, tableEstimate.leafCells());
+                estimatedPages = tableEstimate.depth() + Math.max(0, leaves - 1);
+            }
+            case INDEX_SEARCH -> {
+                // descend the index, read the matching leaves, then descend
+                // the table below its root once per matching rowid
+                estimatedRows = Math.round(Math.ceil(matchingRows));
+                long indexLeaves = (estimatedRows + Math.max(1, indexEstimate.leafCells()) - 1)
+                        / Math.max(1, indexEstimate.leafCells());
+                estimatedPages = indexEstimate.depth() + Math.max(0, indexLeaves - 1)
+                        + 1 + estimatedRows * (tableEstimate.depth() - 1);
+            }
+        }
+        // the Bloom filter answers without reading the tree
+        if (ruledOut) {
+            estimatedPages = 0;
+        }
+    }
+
+    public List<String> format() {
+        List<String> lines = new ArrayList<>();
+        lines.add("QUERY PLAN");
+        switch (accessPath) {
+            case INDEX_SEARCH -> lines.add(String.format("`--SEARCH %s USING INDEX %s (%s=?)",
+                    schema.tableName, index.name(), index.column()));
+            case ROWID_SEEK -> lines.add(String.format(
+                    "`--SEARCH %s USING INTEGER PRIMARY KEY (rowid=?)", schema.tableName));
+            case PRIMARY_KEY_SEEK -> lines.add(String.format(
+                    "`--SEARCH %s USING PRIMARY KEY (%s=?)", schema.tableName,
+                    schema.columnList.get(0).name()));
+            case FULL_SCAN -> lines.add("`--SCAN " + schema.tableName + (zones == null ? ""
+                    : " USING ZONE MAP (" + schema.columnList.get(rowPredicate.getColIndex()).name() + ")"));
+        }
+        if (ruledOut) {
+            lines.add("   key not in bloom filter");
+        }
+        if (tableEstimate != null) {
+            var tree = new StringBuilder();
+            tree.append(String.format(Locale.ROOT, "table depth=%d fanout=%.1f",
+                    tableEstimate.depth(), tableEstimate.fanout()));
+            if (indexEstimate != null) {
+                tree.append(String.format(Locale.ROOT, ", index depth=%d fanout=%.1f",
+                        indexEstimate.depth(), indexEstimate.fanout()));
+            }
+            if (statisticsSource != null) {
+                tree.append(", stats=").append(statisticsSource.name().toLowerCase(Locale.ROOT));
+            }
+            lines.add(String.format("   estimated: rows=%d pages=%d (%s)",
+                    estimatedRows, estimatedPages, tree));
+        }
+        if (actual != null) {
+            lines.add(String.format(Locale.ROOT,
+                    "   actual: rows=%d pages=%d cells=%d time=%.3fms",
+                    actualRows, actual.pagesRead, actual.cellsDecoded,
+                    actual.elapsedNanos / 1_000_000.0));
+        }
+        return lines;
+    }
+
+    public Schema getSchema() { return schema; }
+    public RowPredicate getRowPredicate() { return rowPredicate; }
+    public AccessPath getAccessPath() { return accessPath; }
+    public Schema.Index getIndex() { return index; }
+    public ZoneMap.TableZones getZones() { return zones; }
+    public boolean isRuledOut() { return ruledOut; }
+    public long getEstimatedRows() { return estimatedRows; }
+    public long getEstimatedPages() { return estimatedPages; }
+    public TableStatistics.Source getStatisticsSource() { return statisticsSource; }
+    public QueryStats getActual() { return actual; }
+    public long getActualRows() { return actualRows; }
+}
@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+// Runs the query once per subscriber, on a virtual thread of its own, and
+// hands rows over only as the subscriber requests them. The traversal blocks
+// in accept while there is no demand, so pages are read no faster than the
+// subscriber consumes rows; cancelling wakes it up and ends the scan before
+// the next page. Each subscription opens its own DB since a DB reopens its
+// file for every query and is not safe to share between threads.
+public class QueryPublisher<T> implements Flow.Publisher<T> {
+    private static final AtomicLong SUBSCRIPTIONS = new AtomicLong();
+
+    final String databaseFilePath;
+    final Query query;
+    final boolean stringDictionary;
+    final int batchSize;
+    private final Function<List<String[]>, T> emitted;
+
+    private QueryPublisher(String databaseFilePath, Query query, boolean stringDictionary,
+                           int batchSize, Function<List<String[]>, T> emitted) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+        }
+        this.databaseFilePath = databaseFilePath;
+        this.query = query;
+        this.stringDictionary = stringDictionary;
+        this.batchSize = batchSize;
+        this.emitted = emitted;
+    }
+
+    // one onNext per row
+    static QueryPublisher<String[]> rows(String databaseFilePath, Query query,
+                                         boolean stringDictionary) {
+        return new QueryPublisher<>(databaseFilePath, query, stringDictionary, 1,
+                batch -> batch.get(0));
+    }
+
+    // one onNext per batchSize rows, the last batch may be shorter
+    static QueryPublisher<List<String[]>> batches(String databaseFilePath, Query query,
+                                                  boolean stringDictionary, int batchSize) {
+        return new QueryPublisher<>(databaseFilePath, query, stringDictionary, batchSize,
+                List::copyOf);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super T> subscriber) {
+        Objects.requireNonNull(subscriber);
+        var subscription = new QuerySubscription(subscriber);
+        Thread.ofVirtual()
+                .name("query-" + SUBSCRIPTIONS.incrementAndGet())
+                .start(subscription::run);
+    }
+
+    // every signal to the subscriber comes from the thread running the query
+    private class QuerySubscription implements Flow.Subscription, RowConsumer {
+        final Flow.Subscriber<? super T> subscriber;
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition demanded = lock.newCondition();
+        long demand;
+        volatile boolean cancelled;
+        // a non-positive request fails the subscription
+        volatile IllegalArgumentException invalidRequest;
+        List<Schema.Column> columns;
+        List<String[]> batch = new ArrayList<>();
+
+        QuerySubscription(Flow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            lock.lock();
+            try {
+                if (n <= 0) {
+                    invalidRequest = new IllegalArgumentException(
+                            "non-positive subscription request: " + n);
+                    cancelled = true;
+                } else {
+                    demand = demand > Long.MAX_VALUE - n ? Long.MAX_VALUE : demand + n;
+                }
+                demanded.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            lock.lock();
+            try {
+                cancelled = true;
+                demanded.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void run() {
+            subscriber.onSubscribe(this);
+            try (var db = new DB(databaseFilePath)) {
+                db.setStringDictionary(stringDictionary);
+                db.streamQuery(query, this);
+                if (!batch.isEmpty()) {
+                    emit();
+                }
+                if (!cancelled) {
+                    subscriber.onComplete();
+                }
+            } catch (QueryCancelledException e) {
+                // the subscriber asked to stop, it expects no more signals
+            } catch (IOException | RuntimeException e) {
+                if (!cancelled) {
+                    subscriber.onError(e);
+                }
+            }
+            if (invalidRequest != null) {
+                subscriber.onError(invalidRequest);
+            }
+        }
+
+        @Override
+        public void begin(List<Schema.Column> columns) {
+            this.columns = columns;
+        }
+
+        @Override
+        public void accept(long rowId, Record record) {
+            batch.add(DB.toStrings(columns, rowId, record));
+            if (batch.size() == batchSize) {
+                emit();
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void emit() {
+            awaitDemand();
+            var next = emitted.apply(batch);
+            batch = new ArrayList<>(batchSize);
+            subscriber.onNext(next);
+        }
+
+        private void awaitDemand() {
+            lock.lock();
+            try {
+                while (demand == 0 && !cancelled) {
+                    demanded.awaitUninterruptibly();
+                }
+                if (cancelled) {
+                    throw new QueryCancelledException();
+                }
+                demand--;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+public class QueryStats {
+    String query;
+    long pagesRead;
+    long bytesRead;
+    long cellsDecoded;
+    long recordsDecoded;
+    long rowsScanned;
+    long rowsFiltered;
+    long rowsReturned;
+    long bytesAllocated;
+    long elapsedNanos;
+
+    private long startNanos;
+    private long startAllocatedBytes;
+    private QueryStats previous;
+    private QueryEvent event;
+
+    // counters are only collected for the query running on the current thread
+    private static final ThreadLocal<QueryStats> CURRENT = new ThreadLocal<>();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public QueryStats(String query) {
+        this.query = query;
+    }
+
+    public static QueryStats begin(String query) {
+        QueryStats stats = new QueryStats(query);
+        stats.previous = CURRENT.get();
+        stats.event = new QueryEvent();
+        stats.event.begin();
+        stats.startAllocatedBytes = allocatedBytes();
+        stats.startNanos = System.nanoTime();
+        CURRENT.set(stats);
+        return stats;
+    }
+
+    public void end() {
+        elapsedNanos = System.nanoTime() - startNanos;
+        long allocated = allocatedBytes();
+        if (allocated >= 0 && startAllocatedBytes >= 0) {
+            bytesAllocated = allocated - startAllocatedBytes;
+        }
+        // nested queries roll up into the query that started them
+        if (previous != null) {
+            previous.add(this);
+            CURRENT.set(previous);
+        } else {
+            CURRENT.remove();
+            QueryMetrics.record(this);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.query = query;
+            event.pagesRead = pagesRead;
+            event.bytesRead = bytesRead;
+            event.cellsDecoded = cellsDecoded;
+            event.recordsDecoded = recordsDecoded;
+            event.rowsScanned = rowsScanned;
+            event.rowsFiltered = rowsFiltered;
+            event.rowsReturned = rowsReturned;
+            event.bytesAllocated = bytesAllocated;
+            event.commit();
+        }
+    }
+
+    static QueryStats current() { return CURRENT.get(); }
+
+    static void pageRead(int pageNumber, int bytes) {
+        QueryStats stats = CURRENT.get();
+        if (stats != null) {
+            stats.pagesRead++;
+            stats.bytesRead += bytes;
+        }
+        PageReadEvent.emit(pageNumber, bytes);
+    }
+
+    static void cellDecoded() {
+        QueryStats stats = CURRENT.get();
+        if (stats != null) {
+            stats.cellsDecoded++;
+        }
+    }
+
+    static void recordDecoded() {
+        QueryStats stats = CURRENT.get();
+        if (stats != null) {
+            stats.recordsDecoded++;
+        }
+    }
+
+    static void rowScanned(boolean matched) {
+        QueryStats stats = CURRENT.get();
+        if (stats != null) {
+            stats.rowsScanned++;
+            if (!matched) {
+                stats.rowsFiltered++;
+            }
+        }
+    }
+
+    static void rowReturned() {
+        QueryStats stats = CURRENT.get();
+        if (stats != null) {
+            stats.rowsReturned++;
+        }
+    }
+
+    private void add(QueryStats nested) {
+        pagesRead += nested.pagesRead;
+        bytesRead += nested.bytesRead;
+        cellsDecoded += nested.cellsDecoded;
+        recordsDecoded += nested.recordsDecoded;
+        rowsScanned += nested.rowsScanned;
+        rowsFiltered += nested.rowsFiltered;
+        rowsReturned += nested.rowsReturned;
+    }
+
+    private static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean threads &&
+                threads.isThreadAllocatedMemorySupported() &&
+                threads.isThreadAllocatedMemoryEnabled()) {
+            return threads.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    public String getQuery() { return query; }
+    public long getPagesRead() { return pagesRead; }
+    public long getBytesRead() { return bytesRead; }
+    public long getCellsDecoded() { return cellsDecoded; }
+    public long getRecordsDecoded() { return recordsDecoded; }
+    public long getRowsScanned() { return rowsScanned; }
+    public long getRowsFiltered() { return rowsFiltered; }
+    public long getRowsReturned() { return rowsReturned; }
+    public long getBytesAllocated() { return bytesAllocated; }
+    public long getElapsedNanos() { return elapsedNanos; }
+
+    @Override
+    public String toString() {
+        return "QueryStats{"
+                + "query='" + query + '\'' + ", pagesRead=" + pagesRead +
+                ", bytesRead=" + bytesRead + ", cellsDecoded=" + cellsDecoded +
+                ", recordsDecoded=" + recordsDecoded +
+                ", rowsScanned=" + rowsScanned +
+                ", rowsFiltered=" + rowsFiltered +
+                ", rowsReturned=" + rowsReturned +
+                ", bytesAllocated=" + bytesAllocated +
+                ", elapsedNanos=" + elapsedNanos + '}';
+    }
+}
@@ -1,102 +1,353 @@
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 import java.util.List;
 public class Record {
-    VarInt totalBytesInHeader;
-    List<Integer> serialTypes;
+    int headerSize;
+    int[] serialTypes;
     List<Object> values;
-    public Record(VarInt totalBytesInHeader, List<Integer> serialTypes,
-                  List<Object> values) {
-        this.totalBytesInHeader = totalBytesInHeader;
+    // payload the record was decoded from and where each value starts in it,
+    // lets writers copy text bytes without building a String
+    ByteBuffer payload;
+    int[] valueOffsets;
+    // where the record header starts in the payload buffer
+    int start;
+    TextDecoder textDecoder;
+    public Record(int headerSize, int[] serialTypes, List<Object> values) {
+        this.headerSize = headerSize;
         this.serialTypes = serialTypes;
         this.values = values;
     }
     public static Record readRecord(ByteBuffer buffer) {
-        var sizeOfHeader = Cell.from(buffer);
-        long remaining = sizeOfHeader.value() - sizeOfHeader.bytesRead();
-        List<Integer> columnsType = new ArrayList<>();
-        while (remaining > 0) {
-            var varInt = Cell.from(buffer);
-            columnsType.add((int)varInt.value());
-            remaining -= varInt.bytesRead();
-        }
-        List<Object> values = new ArrayList<>();
-        for (var colType : columnsType) {
-            switch (colType) {
-                case 0:
-                    values.add(null);
-                    break;
-                case 1:
-                    values.add(buffer.get());
-                    break;
-                case 2:
-                    values.add(buffer.getShort());
-                    break;
-                case 3:
-                    byte[] bytes = new byte[] {buffer.get(), buffer.get(), buffer.get()};
-                    // convert bytes to int
-                    int intValue = 0;
-                    for (byte b : bytes) {
-                        intValue = (intValue << 8) + (b & 0xFF);
-                    }
-                    values.add(intValue);
-                    break;
-                case 4:
-                    values.add(buffer.getInt());
-                    break;
-                case 5:
-                    throw new RuntimeException("not implemented");
-                case 6:
-                    values.add(buffer.getLong());
-                    break;
-                case 7:
-                    values.add(buffer.getFloat());
-                    break;
-                case 8:
-                    values.add(0);
-                    break;
-                case 9:
-                    values.add(1);
-                    break;
-                default: {
-                    int contentSize = 0;
-                    if (colType >= 12 && colType % 2 == 0) {
-                        contentSize = (colType - 12) / 2;
-                    }
-                    if (colType >= 13 && colType % 2 == 1) {
-                        contentSize = (colType - 13) / 2;
-                    }
-                    if (contentSize > 0) {
-                        byte[] contents = new byte[contentSize];
-                        buffer.get(contents);
-                        values.add(new String(contents));
-                    } else {
-                        values.add("");
-                    }
+        return readRecord(buffer, TextDecoder.UTF_8);
+    }
+    public static Record readRecord(ByteBuffer buffer, TextDecoder textDecoder) {
+        QueryStats.recordDecoded();
+        int headerStart = buffer.position();
+        int headerSize = (int) VarInt.read(buffer);
+        int headerEnd = headerStart + headerSize;
+        // every serial type takes at least one header byte
+        int[] columnsType = new int[headerEnd - buffer.position()];
+        int columnCount = 0;
+        while (buffer.position() < headerEnd) {
+            columnsType[columnCount++] = (int) VarInt.read(buffer);
+        }
+        if (columnCount < columnsType.length) {
+            columnsType = Arrays.copyOf(columnsType, columnCount);
+        }
+        int[] valueOffsets = new int[columnCount];
+        int offset = buffer.position();
+        for (int column = 0; column < columnCount; ++column) {
+            valueOffsets[column] = offset;
+            offset += contentSize(columnsType[column]);
+        }
+        buffer.position(offset);
+        var record = new Record(headerSize, columnsType, null);
+        record.payload = buffer;
+        record.valueOffsets = valueOffsets;
+        record.start = headerStart;
+        record.textDecoder = textDecoder;
+        return record;
+    }
+    // values are decoded on first access, filters that only look at one
+    // column never touch the others
+    private Object decodeValue(int n) {
+        int colType = serialTypes[n];
+        int offset = valueOffsets[n];
+        return switch (colType) {
+            case 0 -> null;
+            case 1 -> payload.get(offset);
+            case 2 -> payload.getShort(offset);
+            case 3 -> // 24-bit two's complement, sign extended from the top byte
+                    (payload.get(offset) << 16)
+                            | ((payload.get(offset + 1) & 0xFF) << 8)
+                            | (payload.get(offset + 2) & 0xFF);
+            case 4 -> payload.getInt(offset);
+            case 5 -> ((long) payload.getShort(offset) << 32)
+                    | (payload.getInt(offset + 2) & 0xFFFFFFFFL);
+            case 6 -> payload.getLong(offset);
+            case 7 -> payload.getDouble(offset);
+            case 8 -> 0;
+            case 9 -> 1;
+            default -> {
+                int contentSize = contentSize(colType);
+                if (contentSize == 0) {
+                    yield "";
                 }
+                yield isText(colType)
+                        ? textDecoder.decode(payload, offset, contentSize, n)
+                        : textDecoder.newString(payload, offset, contentSize);
             }
+        };
+    }
+    // compares a text column with already encoded bytes without decoding it
+    public boolean textEquals(int n, byte[] expected) {
+        int colType = serialTypes[n];
+        if (!isText(colType) || contentSize(colType) != expected.length) {
+            return false;
+        }
+        int offset = valueOffsets[n];
+        if (payload.hasArray()) {
+            int from = payload.arrayOffset() + offset;
+            return Arrays.equals(payload.array(), from, from + expected.length,
+                    expected, 0, expected.length);
         }
-        return new Record(sizeOfHeader, columnsType, values);
+        for (int i = 0; i < expected.length; ++i) {
+            if (payload.get(offset + i) != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    // the encoded record, copied out of the page buffer it was read from so
+    // it can outlive the traversal
+    public byte[] toBytes() {
+        int end = start + headerSize;
+        if (valueOffsets.length > 0) {
+            int last = valueOffsets.length - 1;
+            end = valueOffsets[last] + contentSize(serialTypes[last]);
+        }
+        byte[] bytes = new byte[end - start];
+        payload.get(start, bytes);
+        return bytes;
     }
-    public VarInt getTotalBytesInHeader() { return totalBytesInHeader; }
-    public void setTotalBytesInHeader(VarInt totalBytesInHeader) {
-        this.totalBytesInHeader = totalBytesInHeader;
+    // column n alone as a one column record
+    public byte[] toBytes(int n) {
+        int serialType = serialTypes[n];
+        int length = contentSize(serialType);
+        int header = 1 + VarInt.sizeOf(serialType);
+        var buffer = ByteBuffer.allocate(header + length);
+        VarInt.write(buffer, header);
+        VarInt.write(buffer, serialType);
+        payload.get(valueOffsets[n], buffer.array(), header, length);
+        return buffer.array();
     }
-    public List<Integer> getSerialTypes() { return serialTypes; }
-    public void setSerialTypes(List<Integer> serialTypes) {
+    // orders encoded text against column n the way the BINARY collation does:
+    // NULL and numbers sort before text, blobs after, text by memcmp
+    public int compareText(byte[] expected, int n) {
+        int colType = serialTypes[n];
+        if (!isText(colType)) {
+            return colType < 12 ? 1 : -1;
+        }
+        int length = contentSize(colType);
+        int offset = valueOffsets[n];
+        if (payload.hasArray()) {
+            int from = payload.arrayOffset() + offset;
+            return Arrays.compareUnsigned(expected, 0, expected.length,
+                    payload.array(), from, from + length);
+        }
+        int common = Math.min(length, expected.length);
+        for (int i = 0; i < common; ++i) {
+            int diff = (expected[i] & 0xFF) - (payload.get(offset + i) & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return expected.length - length;
+    }
+    // mirror of readRecord: a header of serial types followed by the values,
+    // integers use the smallest serial type that holds them
+    public static byte[] encode(Object[] values, Charset charset) {
+        int[] types = new int[values.length];
+        byte[][] texts = new byte[values.length][];
+        int typesSize = 0;
+        int bodySize = 0;
+        for (int i = 0; i < values.length; ++i) {
+            Object value = values[i];
+            if (value instanceof String s) {
+                texts[i] = s.getBytes(charset);
+                types[i] = texts[i].length * 2 + 13;
+            } else if (value instanceof byte[] blob) {
+                texts[i] = blob;
+                types[i] = blob.length * 2 + 12;
+            } else {
+                types[i] = serialTypeFor(value);
+            }
+            typesSize += VarInt.sizeOf(types[i]);
+            bodySize += contentSize(types[i]);
+        }
+        // the header size counts its own varint
+        int headerSize = typesSize + 1;
+        while (typesSize + VarInt.sizeOf(headerSize) != headerSize) {
+            headerSize = typesSize + VarInt.sizeOf(headerSize);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize + bodySize);
+        VarInt.write(buffer, headerSize);
+        for (int type : types) {
+            VarInt.write(buffer, type);
+        }
+        for (int i = 0; i < values.length; ++i) {
+            Object value = values[i];
+            switch (types[i]) {
+                case 0, 8, 9 -> { }
+                case 1, 2, 3, 4, 5, 6 ->
+                        putInteger(buffer, types[i], ((Number) value).longValue());
+                case 7 -> buffer.putDouble(((Number) value).doubleValue());
+                default -> buffer.put(texts[i]);
+            }
+        }
+        return buffer.array();
+    }
+    // orders two records column by column the way an ascending BINARY index
+    // does: NULL, then numbers by value, then text and blobs by memcmp; a
+    // record that is a prefix of the other sorts first
+    static int compareRecords(byte[] a, int aStart, byte[] b, int bStart) {
+        int aHeader = aStart + VarInt.length(a, aStart);
+        int bHeader = bStart + VarInt.length(b, bStart);
+        int aBody = aStart + (int) VarInt.read(a, aStart);
+        int bBody = bStart + (int) VarInt.read(b, bStart);
+        int aHeaderEnd = aBody;
+        int bHeaderEnd = bBody;
+        while (aHeader < aHeaderEnd && bHeader < bHeaderEnd) {
+            int aType = (int) VarInt.read(a, aHeader);
+            int bType = (int) VarInt.read(b, bHeader);
+            aHeader += VarInt.length(a, aHeader);
+            bHeader += VarInt.length(b, bHeader);
+            int cmp = compareValues(a, aType, aBody, b, bType, bBody);
+            if (cmp != 0) {
+                return cmp;
+            }
+            aBody += contentSize(aType);
+            bBody += contentSize(bType);
+        }
+        return Boolean.compare(aHeader < aHeaderEnd, bHeader < bHeaderEnd);
+    }
+    private static int compareValues(byte[] a, int aType, int aOffset,
+                                     byte[] b, int bType, int bOffset) {
+        int aClass = storageClass(aType);
+        int bClass = storageClass(bType);
+        if (aClass != bClass) {
+            return Integer.compare(aClass, bClass);
+        }
+        return switch (aClass) {
+            case 0 -> 0;
+            case 1 -> {
+                if (aType != 7 && bType != 7) {
+                    yield Long.compare(readInteger(a, aOffset, aType), readInteger(b, bOffset, bType));
+                }
+                if (aType == 7 && bType == 7) {
+                    yield Double.compare(readReal(a, aOffset), readReal(b, bOffset));
+                }
+                yield aType == 7
+                        ? -compareIntegerReal(readInteger(b, bOffset, bType), readReal(a, aOffset))
+                        : compareIntegerReal(readInteger(a, aOffset, aType), readReal(b, bOffset));
+            }
+            default -> Arrays.compareUnsigned(
+                    a, aOffset, aOffset + contentSize(aType),
+                    b, bOffset, bOffset + contentSize(bType));
+        };
+    }
+    private static int storageClass(int serialType) {
+        if (serialType == 0) {
+            return 0;
+        }
+        if (serialType < 12) {
+            return 1;
+        }
+        return isText(serialType) ? 2 : 3;
+    }
+    // exact even where the long does not fit a double
+    private static int compareIntegerReal(long i, double r) {
+        if (r < -0x1p63) {
+            return 1;
+        }
+        if (r >= 0x1p63) {
+            return -1;
+        }
+        long truncated = (long) r;
+        if (i != truncated) {
+            return Long.compare(i, truncated);
+        }
+        return Double.compare(0, r - truncated);
+    }
+    static long readInteger(byte[] record, int offset, int serialType) {
+        if (serialType == 8 || serialType == 9) {
+            return serialType - 8;
+        }
+        int length = contentSize(serialType);
+        long value = record[offset]; // sign extends
+        for (int i = 1; i < length; ++i) {
+            value = (value << 8) | (record[offset + i] & 0xff);
+        }
+        return value;
+    }
+    private static double readReal(byte[] record, int offset) {
+        return Double.longBitsToDouble(readInteger(record, offset, 6));
+    }
+    // big-endian two's complement in the width of serial types 1 to 6
+    static void putInteger(ByteBuffer buffer, int serialType, long v) {
+        switch (serialType) {
+            case 1 -> buffer.put((byte) v);
+            case 2 -> buffer.putShort((short) v);
+            case 3 -> buffer.put((byte) (v >> 16)).put((byte) (v >> 8)).put((byte) v);
+            case 4 -> buffer.putInt((int) v);
+            case 5 -> buffer.putShort((short) (v >> 32)).putInt((int) v);
+            case 6 -> buffer.putLong(v);
+            default -> { }
+        }
+    }
+    static int serialTypeFor(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return 7;
+        }
+        if (!(value instanceof Number number)) {
+            throw new IllegalArgumentException("Unsupported value type: " + value.getClass());
+        }
+        long v = number.longValue();
+        if (v == 0) return 8;
+        if (v == 1) return 9;
+        if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) return 1;
+        if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE) return 2;
+        if (v >= -(1 << 23) && v < (1 << 23)) return 3;
+        if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) return 4;
+        if (v >= -(1L << 47) && v < (1L << 47)) return 5;
+        return 6;
+    }
+    public static int contentSize(int serialType) {
+        return switch (serialType) {
+            case 0, 8, 9 -> 0;
+            case 1 -> 1;
+            case 2 -> 2;
+            case 3 -> 3;
+            case 4 -> 4;
+            case 5 -> 6;
+            case 6, 7 -> 8;
+            default -> serialType >= 12 ? (serialType - 12) / 2 : 0;
+        };
+    }
+    public static boolean isText(int serialType) {
+        return serialType >= 13 && serialType % 2 == 1;
+    }
+    public int getSerialType(int n) { return serialTypes[n]; }
+    public ByteBuffer getPayload() { return payload; }
+    public int getValueOffset(int n) { return valueOffsets[n]; }
+    public int getValueLength(int n) { return contentSize(serialTypes[n]); }
+    public int getHeaderSize() { return headerSize; }
+    public void setHeaderSize(int headerSize) { this.headerSize = headerSize; }
+    public int[] getSerialTypes() { return serialTypes; }
+    public void setSerialTypes(int[] serialTypes) {
         this.serialTypes = serialTypes;
     }
-    public List<Object> getValues() { return values; }
+    public TextDecoder getTextDecoder() { return textDecoder; }
+    public List<Object> getValues() {
+        if (values == null) {
+            Object[] decoded = new Object[serialTypes.length];
+            for (int i = 0; i < decoded.length; ++i) {
+                decoded[i] = getValue(i);
+            }
+            values = Arrays.asList(decoded);
+        }
+        return values;
+    }
     public void setValues(List<Object> values) { this.values = values; }
     public Object getValue(int n) {
-        assert n >= 0 && n <= this.serialTypes.size();
-        int colType = this.serialTypes.get(n);
-        return switch (colType) {
-        case 0 -> null;
-        case 5 -> throw new RuntimeException("not implemented");
-        case 8 -> 0;
-        case 9 -> 1;
-        default -> values.get(n);
-    };
-}
+        assert n >= 0 && n <= this.serialTypes.length;
+        if (values != null) {
+            return values.get(n);
+        }
+        return decodeValue(n);
+    }
 }
\ No newline at end of file
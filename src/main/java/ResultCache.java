@@ -0,0 +1,144 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// Query results kept until the data they were read from changes. Entries
+// are keyed by normalized query text and dropped least recently used first
+// once their estimated size passes the budget; all of them go at once when
+// the data version (file change counter and WAL state) moves on.
+public class ResultCache {
+    private static final Set<String> KEYWORDS = Set.of(
+            "SELECT", "FROM", "WHERE", "AND", "OR", "COUNT(*)");
+    // object headers and references of a row and of each of its strings
+    private static final int ROW_OVERHEAD = 32;
+    private static final int STRING_OVERHEAD = 48;
+
+    final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private DB.DataVersion version;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private record Entry(List<String[]> rows, long bytes) {}
+
+    public ResultCache(long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid cache size: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    // null on a miss; a new data version empties the cache first
+    synchronized List<String[]> get(String key, DB.DataVersion current) {
+        invalidateIfChanged(current);
+        var entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.rows();
+    }
+
+    // results larger than the whole budget are not kept
+    synchronized void put(String key, DB.DataVersion current, List<String[]> rows) {
+        invalidateIfChanged(current);
+        long size = sizeOf(key, rows);
+        if (size > maxBytes) {
+            return;
+        }
+        var previous = entries.put(key, new Entry(rows, size));
+        if (previous != null) {
+            bytes -= previous.bytes();
+        }
+        bytes += size;
+        Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= leastRecentlyUsed.next().bytes();
+            leastRecentlyUsed.remove();
+            evictions++;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private void invalidateIfChanged(DB.DataVersion current) {
+        if (!current.equals(version)) {
+            clear();
+            version = current;
+        }
+    }
+
+    // whitespace runs outside string literals collapse to one space,
+    // keywords are upper-cased and a trailing semicolon is dropped; table
+    // and column names keep their case since lookups are case sensitive
+    static String normalize(String sql) {
+        var normalized = new StringBuilder(sql.length());
+        var token = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < sql.length(); ++i) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            }
+            if (!quoted && Character.isWhitespace(c)) {
+                appendToken(normalized, token);
+            } else {
+                token.append(c);
+            }
+        }
+        appendToken(normalized, token);
+        int end = normalized.length();
+        if (end > 0 && normalized.charAt(end - 1) == ';') {
+            normalized.setLength(end - 1);
+        }
+        return normalized.toString().trim();
+    }
+
+    private static void appendToken(StringBuilder normalized, StringBuilder token) {
+        if (token.isEmpty()) {
+            return;
+        }
+        if (!normalized.isEmpty()) {
+            normalized.append(' ');
+        }
+        var word = token.toString();
+        var upper = word.toUpperCase(Locale.ROOT);
+        normalized.append(KEYWORDS.contains(upper) ? upper : word);
+        token.setLength(0);
+    }
+
+    private static long sizeOf(String key, List<String[]> rows) {
+        long size = STRING_OVERHEAD + 2L * key.length();
+        for (var row : rows) {
+            size += ROW_OVERHEAD + 8L * row.length;
+            for (var value : row) {
+                size += STRING_OVERHEAD + 2L * value.length();
+            }
+        }
+        return size;
+    }
+
+    // callers get their own rows so changing them cannot alter the cache
+    static List<String[]> copyOf(List<String[]> rows) {
+        var copy = new ArrayList<String[]>(rows.size());
+        for (var row : rows) {
+            copy.add(row.clone());
+        }
+        return copy;
+    }
+
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+    public synchronized long getEvictions() { return evictions; }
+    public synchronized long getBytes() { return bytes; }
+    public synchronized int size() { return entries.size(); }
+}
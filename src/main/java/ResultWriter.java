@@ -0,0 +1,265 @@
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+// Writes rows into one reusable byte buffer and only touches the stream when
+// the buffer is full. Integers are encoded digit by digit and text is copied
+// as raw bytes from the record payload, so no String is built per value.
+public class ResultWriter implements RowConsumer, Flushable {
+    public enum Mode { LIST, CSV, TABS, JSONL }
+
+    static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+    private final Mode mode;
+    private byte[] buffer;
+    private int position;
+    private List<Schema.Column> columns;
+    private ByteBuffer[] jsonKeys;
+
+    public ResultWriter(OutputStream out, Mode mode) {
+        this(out, mode, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ResultWriter(OutputStream out, Mode mode, int bufferSize) {
+        this.out = out;
+        this.mode = mode;
+        this.buffer = new byte[bufferSize];
+    }
+
+    public static Mode parseMode(String option) {
+        return switch (option) {
+            case "-list" -> Mode.LIST;
+            case "-csv" -> Mode.CSV;
+            case "-tabs" -> Mode.TABS;
+            case "-jsonl" -> Mode.JSONL;
+            default -> throw new IllegalArgumentException("Unknown output mode: " + option);
+        };
+    }
+
+    @Override
+    public void begin(List<Schema.Column> columns) {
+        this.columns = columns;
+        if (mode == Mode.JSONL) {
+            jsonKeys = new ByteBuffer[columns.size()];
+            for (int i = 0; i < columns.size(); ++i) {
+                jsonKeys[i] = ByteBuffer.wrap(columns.get(i).name().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Override
+    public void accept(long rowId, Record record) throws IOException {
+        if (mode == Mode.JSONL) {
+            writeByte((byte) '{');
+        }
+        for (int i = 0; i < columns.size(); ++i) {
+            switch (mode) {
+                case LIST -> { if (i > 0) writeByte((byte) '|'); }
+                case CSV -> { if (i > 0) writeByte((byte) ','); }
+                case TABS -> { if (i > 0) writeByte((byte) '\t'); }
+                case JSONL -> {
+                    // column names are quoted and escaped like any string
+                    if (i > 0) writeByte((byte) ',');
+                    writeText(jsonKeys[i], 0, jsonKeys[i].capacity());
+                    writeByte((byte) ':');
+                }
+            }
+            var column = columns.get(i);
+            if (column.isPK()) {
+                writeLong(rowId);
+            } else {
+                writeValue(record, column.index());
+            }
+        }
+        if (mode == Mode.JSONL) {
+            writeByte((byte) '}');
+        }
+        writeByte((byte) '\n');
+    }
+
+    private void writeValue(Record record, int n) throws IOException {
+        int serialType = record.getSerialType(n);
+        switch (serialType) {
+            case 0 -> {
+                switch (mode) {
+                    case LIST, JSONL -> writeBytes(NULL);
+                    default -> { }
+                }
+            }
+            case 1, 2, 3, 4, 5, 6 ->
+                    writeLong(((Number) record.getValue(n)).longValue());
+            case 7 -> writeReal((Double) record.getValue(n));
+            case 8 -> writeByte((byte) '0');
+            case 9 -> writeByte((byte) '1');
+            default -> {
+                if (record.getTextDecoder().isUtf8()) {
+                    writeText(record.getPayload(), record.getValueOffset(n),
+                            record.getValueLength(n));
+                } else {
+                    // UTF-16 databases are transcoded through the decoded value
+                    byte[] utf8 = String.valueOf(record.getValue(n))
+                            .getBytes(StandardCharsets.UTF_8);
+                    writeText(ByteBuffer.wrap(utf8), 0, utf8.length);
+                }
+            }
+        }
+    }
+
+    // JSON has no infinities, sqlite3's json() writes them as a number too
+    // large for a double
+    private void writeReal(double value) throws IOException {
+        if (mode == Mode.JSONL && Double.isInfinite(value)) {
+            writeAscii(value > 0 ? "9.0e+999" : "-9.0e+999");
+        } else {
+            writeAscii(String.valueOf(value));
+        }
+    }
+
+    private void writeText(ByteBuffer source, int offset, int length)
+            throws IOException {
+        switch (mode) {
+            case CSV -> {
+                if (needsCsvQuotes(source, offset, length)) {
+                    writeCsvQuoted(source, offset, length);
+                } else {
+                    copy(source, offset, length);
+                }
+            }
+            case JSONL -> {
+                writeByte((byte) '"');
+                writeJsonEscaped(source, offset, length);
+                writeByte((byte) '"');
+            }
+            default -> copy(source, offset, length);
+        }
+    }
+
+    private static boolean needsCsvQuotes(ByteBuffer source, int offset, int length) {
+        for (int i = offset; i < offset + length; ++i) {
+            byte b = source.get(i);
+            if (b == '"' || b == ',' || b == '\n' || b == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeCsvQuoted(ByteBuffer source, int offset, int length)
+            throws IOException {
+        writeByte((byte) '"');
+        for (int i = offset; i < offset + length; ++i) {
+            byte b = source.get(i);
+            if (b == '"') {
+                writeByte((byte) '"');
+            }
+            writeByte(b);
+        }
+        writeByte((byte) '"');
+    }
+
+    // multi-byte UTF-8 sequences never contain bytes below 0x80, so escaping
+    // can work on the raw bytes; runs without escapes are copied in bulk
+    private void writeJsonEscaped(ByteBuffer source, int offset, int length)
+            throws IOException {
+        int runStart = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; ++i) {
+            byte b = source.get(i);
+            if (b != '"' && b != '\\' && (b < 0 || b >= 0x20)) {
+                continue;
+            }
+            copy(source, runStart, i - runStart);
+            runStart = i + 1;
+            writeByte((byte) '\\');
+            switch (b) {
+                case '"', '\\' -> writeByte(b);
+                case '\n' -> writeByte((byte) 'n');
+                case '\r' -> writeByte((byte) 'r');
+                case '\t' -> writeByte((byte) 't');
+                default -> {
+                    writeByte((byte) 'u');
+                    writeByte((byte) '0');
+                    writeByte((byte) '0');
+                    writeByte(HEX[(b >> 4) & 0xf]);
+                    writeByte(HEX[b & 0xf]);
+                }
+            }
+        }
+        copy(source, runStart, end - runStart);
+    }
+
+    private void copy(ByteBuffer source, int offset, int length) throws IOException {
+        ensure(length);
+        source.get(offset, buffer, position, length);
+        position += length;
+    }
+
+    void writeLong(long value) throws IOException {
+        ensure(20);
+        if (value == Long.MIN_VALUE) {
+            writeAscii(Long.toString(value));
+            return;
+        }
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int end = position + digits;
+        for (int i = end - 1; i >= position; --i) {
+            buffer[i] = (byte) ('0' + (value % 10));
+            value /= 10;
+        }
+        position = end;
+    }
+
+    private void writeAscii(String value) throws IOException {
+        ensure(value.length());
+        for (int i = 0; i < value.length(); ++i) {
+            buffer[position++] = (byte) value.charAt(i);
+        }
+    }
+
+    private void writeBytes(byte[] bytes) throws IOException {
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void writeByte(byte b) throws IOException {
+        if (position == buffer.length) {
+            flushBuffer();
+        }
+        buffer[position++] = b;
+    }
+
+    private void ensure(int length) throws IOException {
+        if (position + length <= buffer.length) {
+            return;
+        }
+        flushBuffer();
+        if (length > buffer.length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buffer, 0, position);
+        position = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+}
@@ -0,0 +1,11 @@
+import java.io.IOException;
+import java.util.List;
+
+// receives rows straight from the traversal, the record is only valid until
+// accept returns
+public interface RowConsumer {
+    default void begin(List<Schema.Column> columns) throws IOException {}
+    void accept(long rowId, Record record) throws IOException;
+    // polled before each page, a cancelled consumer ends the scan early
+    default boolean isCancelled() { return false; }
+}
@@ -7,6 +7,10 @@ public class RowPredicate {
     Schema schema;
     int colIndex;
     Object expected;
+    // the literal in the database encoding, text values are compared
+    // against it byte for byte without decoding them
+    String literal;
+    byte[] expectedText;
     String op;
 
     public RowPredicate(String filter, Schema schema) {
@@ -31,22 +35,113 @@ public class RowPredicate {
                 .orElseThrow(() -> new IllegalArgumentException("Column not found: " + colName))
                 .index();
 
-        if (Character.isDigit(arg.charAt(0))) {
-            expected = Integer.parseInt(arg);
-        } else {
-            expected = arg;
+        literal = arg;
+        expected = arg;
+        // a sign may lead, ranges often start below zero
+        char first = arg.charAt(0);
+        if (Character.isDigit(first) || ((first == '-' || first == '+') && arg.length() > 1)) {
+            try {
+                expected = Long.parseLong(arg);
+            } catch (NumberFormatException e) {
+                try {
+                    expected = Double.parseDouble(arg);
+                } catch (NumberFormatException notNumeric) {
+                    // compared as text
+                }
+            }
+        }
+        expectedText = TextDecoder.UTF_8.encode(literal);
+    }
+
+    public void bind(TextDecoder textDecoder) {
+        expectedText = textDecoder.encode(literal);
+    }
+
+    // text columns compare as text even when the literal looks like a number
+    public boolean comparesAsText() {
+        if (expected instanceof String) {
+            return true;
         }
+        String type = schema.columnList.get(colIndex).type().toUpperCase();
+        return type.contains("CHAR") || type.contains("CLOB") || type.contains("TEXT");
+    }
+
+    // the literal as a rowid, null when it is not an integer
+    public Long getIntegerLiteral() {
+        try {
+            return Long.parseLong(literal);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // orders the literal against column n of a record the way the BINARY
+    // collation does: NULL first, then numbers, text and blobs
+    public int compareTo(Record record, int n) {
+        if (comparesAsText()) {
+            return record.compareText(expectedText, n);
+        }
+        int serialType = record.getSerialType(n);
+        if (serialType == 0) {
+            return 1;
+        }
+        if (serialType >= 12) {
+            return -1;
+        }
+        var value = (Number) record.getValue(n);
+        var e = (Number) expected;
+        return value instanceof Double || e instanceof Double
+                ? Double.compare(e.doubleValue(), value.doubleValue())
+                : Long.compare(e.longValue(), value.longValue());
+    }
+
+    // the rowid alias is stored as NULL in the record, its value is the rowid
+    public boolean eval(long rowId, Record evalRecord) {
+        if (!schema.columnList.get(colIndex).isPK()) {
+            return eval(evalRecord);
+        }
+        if (comparesAsText()) {
+            // an integer sorts before any text
+            return "<".equals(op);
+        }
+        var e = (Number) expected;
+        int cmp = e instanceof Double
+                ? Double.compare(e.doubleValue(), rowId)
+                : Long.compare(e.longValue(), rowId);
+        return matches(cmp);
     }
 
     public boolean eval(Record evalRecord) {
-        var recordValue = evalRecord.getValues().get(this.colIndex);
+        if ("<".equals(op) || ">".equals(op)) {
+            // NULL is neither smaller nor larger than anything
+            return evalRecord.getSerialType(colIndex) != 0 && matches(compareTo(evalRecord, colIndex));
+        }
         if ("=".equals(op)) {
+            if (Record.isText(evalRecord.getSerialType(this.colIndex))) {
+                return evalRecord.textEquals(this.colIndex, expectedText);
+            }
+            var recordValue = evalRecord.getValue(this.colIndex);
+            if (recordValue instanceof Number n && expected instanceof Number e) {
+                return recordValue instanceof Double || e instanceof Double
+                        ? n.doubleValue() == e.doubleValue()
+                        : n.longValue() == e.longValue();
+            }
             return Objects.equals(recordValue, expected);
         } else {
             throw new UnsupportedOperatorException("Evaluation not implemented for operator " + op);
         }
     }
 
+    // cmp orders the literal against the value
+    private boolean matches(int cmp) {
+        return switch (op) {
+            case "=" -> cmp == 0;
+            case "<" -> cmp > 0;
+            case ">" -> cmp < 0;
+            default -> throw new UnsupportedOperatorException("Evaluation not implemented for operator " + op);
+        };
+    }
+
     public String getFilter() {
         return filter;
     }
@@ -63,6 +158,10 @@ public class RowPredicate {
         return expected;
     }
 
+    public byte[] getExpectedText() {
+        return expectedText;
+    }
+
     public String getOp() {
         return op;
     }
@@ -2,18 +2,44 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 public class Schema {
+    private static final Set<String> TABLE_CONSTRAINTS =
+            Set.of("CONSTRAINT", "PRIMARY", "UNIQUE", "CHECK", "FOREIGN");
+    private static final Set<String> COLUMN_CONSTRAINTS = Set.of("CONSTRAINT", "PRIMARY",
+            "NOT", "NULL", "UNIQUE", "CHECK", "DEFAULT", "COLLATE", "REFERENCES", "GENERATED", "AS");
+    private static final Pattern PRIMARY_KEY = Pattern.compile("\\bPRIMARY\\s+KEY\\b");
+    private static final Pattern WITHOUT_ROWID =
+            Pattern.compile("\\bWITHOUT\\s+ROWID\\b", Pattern.CASE_INSENSITIVE);
+
     String tableName;
     Integer pageNumber;
     List<Column> columnList;
+    // stored as an index B-tree keyed by the primary key, whose columns
+    // come first in columnList
+    boolean withoutRowId;
+    List<KeyColumn> primaryKey = List.of();
     Index index;
+    // every index on the table the planner can search by its first column
+    List<Index> indexes = new ArrayList<>();
 
     public record Column(String name, String type, Integer index, boolean isPK) {}
     public record Index(String name, String column, int colIndex, int pageNumber) {}
+    // a primary key column, name lower-cased, with the order and collation
+    // its B-tree is sorted in
+    public record KeyColumn(String name, boolean descending, String collation) {
+        // the order comparisons on the decoded values follow
+        public boolean ascendingBinary() {
+            return !descending && collation.equalsIgnoreCase("BINARY");
+        }
+    }
 
     public Schema(String tableName, List<Column> columnList, int pageNumber) {
         this.tableName = tableName;
@@ -29,15 +55,19 @@ public class Schema {
     }
 
     public static Schema loadSchema(BtreePage page, String table) throws IOException {
+        return loadSchema(page, table, TextDecoder.UTF_8);
+    }
+
+    public static Schema loadSchema(BtreePage page, String table, TextDecoder textDecoder) throws IOException {
         byte pageType = page.btreePageHeader.pageType;
-        ByteBuffer pageContents = ByteBuffer.wrap(page.pageContents).order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer pageContents = page.buffer();
         Schema schema = null;
 
         for (var cellOffset : page.cellPointerArray) {
             pageContents.position(cellOffset);
             var cell = Cell.readCell(pageContents, pageType);
-            ByteBuffer cellPayload = ByteBuffer.wrap(cell.getPayload()).order(ByteOrder.BIG_ENDIAN);
-            var schemaRecord = Record.readRecord(cellPayload);
+            ByteBuffer cellPayload = cell.payloadBuffer();
+            var schemaRecord = Record.readRecord(cellPayload, textDecoder);
 
             schema = processSchemaRecord(schemaRecord, schema, table);
         }
@@ -59,10 +89,21 @@ public class Schema {
                 case "table" -> {
                     List<Column> columns = parseColumns(objectDef);
                     schema = new Schema(objectName, columns, pageNumber);
+                    schema.withoutRowId = isWithoutRowId(objectDef);
+                    if (schema.withoutRowId) {
+                        schema.primaryKey = primaryKey(objectDef);
+                    }
                 }
                 case "index" -> {
-                    if (schema instanceof Schema s) {
-                        s.index = parseIndex(s, pageNumber, objectName, objectDef);
+                    // indexes behind UNIQUE and PRIMARY KEY constraints have
+                    // no sql
+                    if (schema instanceof Schema s && objectDef != null) {
+                        var indexName = (String) schemaRecord.getValues().get(1);
+                        var parsed = parseIndex(s, pageNumber, indexName, objectDef);
+                        if (parsed != null) {
+                            s.index = parsed;
+                            s.indexes.add(parsed);
+                        }
                     }
                 }
                 default -> throw new SchemaLoadingException("Unknown object type: " + objectType);
@@ -75,38 +116,176 @@ public class Schema {
         Object val3 = schemaRecord.getValues().get(3);
         return switch (val3) {
             case Integer integer -> integer;
+            case Short shortValue -> shortValue.intValue();
             case Byte byteValue -> byteValue.intValue();
             default -> throw new UnexpectedValueTypeException("Unexpected type for val3");
         };
     }
 
+    // null for indexes that cannot answer col = literal: partial indexes,
+    // expressions and collations other than BINARY
     protected static Index parseIndex(Schema schema, int indexPageNumber, String indexName, String indexDef) {
+        // index entries of a WITHOUT ROWID table end with the primary key,
+        // not a rowid to look up
+        if (schema.withoutRowId) {
+            return null;
+        }
         int openParenIdx = indexDef.indexOf('(');
-        int closeParenIdx = indexDef.indexOf(')');
-        String colName = indexDef.substring(openParenIdx + 1, closeParenIdx);
+        int closeParenIdx = closingParen(indexDef, openParenIdx);
+        if (indexDef.substring(closeParenIdx + 1).trim().toUpperCase().startsWith("WHERE")) {
+            return null;
+        }
+        // a multi-column index is searched by its leading column
+        var leading = indexDef.substring(openParenIdx + 1, closeParenIdx).split(",")[0]
+                .trim().split("\\s+");
+        String colName = leading[0];
+        for (int i = 1; i + 1 < leading.length; ++i) {
+            if (leading[i].equalsIgnoreCase("COLLATE") && !leading[i + 1].equalsIgnoreCase("BINARY")) {
+                return null;
+            }
+        }
         var colOptional = schema.columnList.stream()
                 .filter(c -> c.name.equals(colName))
                 .findAny();
         if (colOptional.isEmpty()) {
-            throw new SchemaLoadingException("Column not found: " + colName);
+            return null;
         }
         var colIndex = colOptional.get().index;
         return new Index(indexName, colName, colIndex, indexPageNumber);
     }
 
+    // a WITHOUT ROWID table is an index B-tree whose records start with the
+    // primary key columns, followed by the others in declaration order; the
+    // columns are listed in record order so index is still the position
     protected static List<Column> parseColumns(String tableDefinition) {
-        var openParenIndex = tableDefinition.indexOf('(');
-        var closeParenIndex = tableDefinition.indexOf(')');
-        var columnDefList = tableDefinition.substring(openParenIndex + 1, closeParenIndex);
-        var columns = columnDefList.split(",");
+        boolean withoutRowId = isWithoutRowId(tableDefinition);
+        var primaryKey = primaryKey(tableDefinition);
         var result = new ArrayList<Column>();
-        for (int i = 0; i < columns.length; ++i) {
-            var colDef = columns[i].trim().split(" ", 0);
-            result.add(new Column(colDef[0].trim(), colDef[1].trim(), i, columns[i].toUpperCase().contains("INTEGER PRIMARY KEY")));
+        int nextIndex = withoutRowId ? primaryKey.size() : 0;
+        for (var definition : splitDefinitions(tableDefinition)) {
+            var words = definition.trim().split("\\s+");
+            if (TABLE_CONSTRAINTS.contains(words[0].toUpperCase(Locale.ROOT))) {
+                continue;
+            }
+            var colName = words[0];
+            // the type is optional, such columns have no affinity
+            var colType = words.length > 1 && !COLUMN_CONSTRAINTS.contains(words[1].toUpperCase(Locale.ROOT))
+                    ? words[1] : "";
+            int keyPosition = primaryKey.stream().map(KeyColumn::name).toList()
+                    .indexOf(colName.toLowerCase(Locale.ROOT));
+            int index = withoutRowId && keyPosition >= 0 ? keyPosition : nextIndex++;
+            // only a rowid table has a rowid for INTEGER PRIMARY KEY to alias
+            boolean rowIdAlias = !withoutRowId && primaryKey.size() == 1 && keyPosition == 0
+                    && colType.equalsIgnoreCase("INTEGER");
+            result.add(new Column(colName, colType, index, rowIdAlias));
         }
+        result.sort(Comparator.comparingInt(Column::index));
         return result;
     }
 
+    // the primary key columns in key order, declared on a column or as a
+    // table constraint; a key column without COLLATE sorts by the collation
+    // of its column
+    static List<KeyColumn> primaryKey(String tableDefinition) {
+        var definitions = splitDefinitions(tableDefinition);
+        var primaryKey = new ArrayList<KeyColumn>();
+        for (var definition : definitions) {
+            if (!PRIMARY_KEY.matcher(definition.toUpperCase(Locale.ROOT)).find()) {
+                continue;
+            }
+            var words = definition.trim().split("\\s+");
+            if (!TABLE_CONSTRAINTS.contains(words[0].toUpperCase(Locale.ROOT))) {
+                int key = 0;
+                while (key + 1 < words.length && !words[key].equalsIgnoreCase("KEY")) {
+                    key++;
+                }
+                boolean descending = key + 1 < words.length && words[key + 1].equalsIgnoreCase("DESC");
+                primaryKey.add(new KeyColumn(words[0].toLowerCase(Locale.ROOT), descending,
+                        collation(words, "BINARY")));
+                continue;
+            }
+            int open = definition.indexOf('(');
+            for (var keyColumn : definition.substring(open + 1, closingParen(definition, open)).split(",")) {
+                var keyWords = keyColumn.trim().split("\\s+");
+                var name = keyWords[0].toLowerCase(Locale.ROOT);
+                boolean descending = keyWords[keyWords.length - 1].equalsIgnoreCase("DESC");
+                primaryKey.add(new KeyColumn(name, descending,
+                        collation(keyWords, columnCollation(definitions, name))));
+            }
+        }
+        return primaryKey;
+    }
+
+    private static String columnCollation(List<String> definitions, String column) {
+        for (var definition : definitions) {
+            var words = definition.trim().split("\\s+");
+            if (!TABLE_CONSTRAINTS.contains(words[0].toUpperCase(Locale.ROOT))
+                    && words[0].equalsIgnoreCase(column)) {
+                return collation(words, "BINARY");
+            }
+        }
+        return "BINARY";
+    }
+
+    private static String collation(String[] words, String otherwise) {
+        for (int i = 0; i + 1 < words.length; ++i) {
+            if (words[i].equalsIgnoreCase("COLLATE")) {
+                return words[i + 1].replace("\"", "").replace("'", "");
+            }
+        }
+        return otherwise;
+    }
+
+    static boolean isWithoutRowId(String tableDefinition) {
+        int open = tableDefinition.indexOf('(');
+        var options = tableDefinition.substring(closingParen(tableDefinition, open) + 1);
+        return WITHOUT_ROWID.matcher(options).find();
+    }
+
+    // column definitions and table constraints, split on the commas outside
+    // parentheses and quotes
+    private static List<String> splitDefinitions(String tableDefinition) {
+        int open = tableDefinition.indexOf('(');
+        int close = closingParen(tableDefinition, open);
+        var definitions = new ArrayList<String>();
+        int depth = 0;
+        boolean quoted = false;
+        int start = open + 1;
+        for (int i = start; i < close; ++i) {
+            char c = tableDefinition.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted && c == '(') {
+                depth++;
+            } else if (!quoted && c == ')') {
+                depth--;
+            } else if (!quoted && depth == 0 && c == ',') {
+                definitions.add(tableDefinition.substring(start, i));
+                start = i + 1;
+            }
+        }
+        definitions.add(tableDefinition.substring(start, close));
+        return definitions;
+    }
+
+    // the parenthesis matching the one at open, quotes aside
+    static int closingParen(String sql, int open) {
+        int depth = 0;
+        boolean quoted = false;
+        for (int i = open; i < sql.length(); ++i) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                quoted = !quoted;
+            } else if (!quoted) {
+                depth += c == '(' ? 1 : c == ')' ? -1 : 0;
+                if (depth == 0) {
+                    return i;
+                }
+            }
+        }
+        return sql.length();
+    }
+
     public String getTableName() {
         return tableName;
     }
@@ -0,0 +1,283 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Runs one query over database files that share a schema, each shard on a
+// virtual thread of its own, so a fan-out costs about as much as the
+// slowest shard. Shards copy matching records out of their traversal in
+// batches and a bounded queue hands them to the calling thread, which
+// feeds the consumer rows in the order they arrive; the consumer never
+// sees more than one thread and fast shards cannot run far ahead of it.
+// count(*) adds up the counts of the shards.
+public class ShardedDB implements Closeable {
+    static final int BATCH_SIZE = 256;
+    // batches waiting for the consumer, per shard
+    static final int QUEUED_BATCHES = 2;
+
+    final List<String> databaseFilePaths;
+    final List<DB> shards = new ArrayList<>();
+
+    // rows copied out of one shard, or how that shard ended
+    private record Batch(int shard, List<Schema.Column> columns, long[] rowIds,
+                         byte[][] records, int size, Throwable error, boolean last) {}
+
+    public ShardedDB(List<String> databaseFilePaths) throws IOException {
+        if (databaseFilePaths.isEmpty()) {
+            throw new IllegalArgumentException("No database files given");
+        }
+        this.databaseFilePaths = List.copyOf(databaseFilePaths);
+        try {
+            for (var path : databaseFilePaths) {
+                shards.add(new DB(path));
+            }
+            checkSchemas();
+        } catch (IOException | RuntimeException e) {
+            try {
+                closeShards();
+            } catch (IOException closing) {
+                e.addSuppressed(closing);
+            }
+            throw e;
+        }
+    }
+
+    // every shard must hold the same tables with the same columns in the
+    // same text encoding as the first one
+    private void checkSchemas() throws IOException {
+        var expected = describeSchema(shards.get(0));
+        for (int i = 1; i < shards.size(); ++i) {
+            var actual = describeSchema(shards.get(i));
+            if (actual.equals(expected)) {
+                continue;
+            }
+            var tables = new TreeMap<String, String>(expected);
+            tables.putAll(actual);
+            for (var table : tables.keySet()) {
+                if (!Objects.equals(expected.get(table), actual.get(table))) {
+                    throw new ShardSchemaException(databaseFilePaths.get(i) + ": " + table +
+                            " differs from " + databaseFilePaths.get(0));
+                }
+            }
+        }
+    }
+
+    private static Map<String, String> describeSchema(DB db) throws IOException {
+        var tables = new TreeMap<String, String>();
+        tables.put("encoding", db.textDecoder.charset.name());
+        for (var row : db.schemaRecords()) {
+            if ("table".equals(row.getValue(0)) && row.getValue(4) != null) {
+                var sql = String.valueOf(row.getValue(4));
+                tables.put(String.valueOf(row.getValue(2)),
+                        Schema.parseColumns(sql) + (Schema.isWithoutRowId(sql) ? " WITHOUT ROWID" : ""));
+            }
+        }
+        return tables;
+    }
+
+    public int getShardCount() { return shards.size(); }
+
+    public long countRows(String table) throws IOException {
+        long count = 0;
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var counts = new ArrayList<Future<Integer>>();
+            for (var shard : shards) {
+                counts.add(executor.submit(() -> shard.countRows(table)));
+            }
+            for (int i = 0; i < counts.size(); ++i) {
+                count += await(counts.get(i), i);
+            }
+        }
+        return count;
+    }
+
+    public List<String[]> runQuery(Query query) throws IOException {
+        List<String[]> resultSet = new ArrayList<>();
+        streamQuery(query, new RowConsumer() {
+            List<Schema.Column> columns;
+            @Override
+            public void begin(List<Schema.Column> columns) {
+                this.columns = columns;
+            }
+            @Override
+            public void accept(long rowId, Record record) {
+                resultSet.add(DB.toStrings(columns, rowId, record));
+            }
+        });
+        return resultSet;
+    }
+
+    // the consumer is called on this thread only; a failing shard cancels
+    // the others and its error is thrown here
+    public void streamQuery(Query query, RowConsumer consumer) throws IOException {
+        BlockingQueue<Batch> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES * shards.size());
+        var cancelled = new AtomicBoolean();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < shards.size(); ++i) {
+                int shard = i;
+                executor.submit(() -> runShard(shard, query, queue, cancelled));
+            }
+            try {
+                mergeBatches(queue, consumer);
+            } finally {
+                // the executor waits for the shards, which stop at their
+                // next page or batch once cancelled
+                cancelled.set(true);
+                queue.clear();
+            }
+        }
+    }
+
+    private void mergeBatches(BlockingQueue<Batch> queue, RowConsumer consumer) throws IOException {
+        int running = shards.size();
+        boolean begun = false;
+        while (running > 0) {
+            Batch batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for shards");
+            }
+            if (batch.error() != null) {
+                throw shardFailure(batch.shard(), batch.error());
+            }
+            if (!begun && batch.columns() != null) {
+                consumer.begin(batch.columns());
+                begun = true;
+            }
+            var textDecoder = shards.get(batch.shard()).textDecoder;
+            for (int i = 0; i < batch.size(); ++i) {
+                var payload = ByteBuffer.wrap(batch.records()[i]).order(ByteOrder.BIG_ENDIAN);
+                consumer.accept(batch.rowIds()[i], Record.readRecord(payload, textDecoder));
+            }
+            if (batch.last()) {
+                running--;
+            }
+        }
+    }
+
+    private void runShard(int shard, Query query, BlockingQueue<Batch> queue,
+                          AtomicBoolean cancelled) {
+        var collector = new RowConsumer() {
+            List<Schema.Column> columns;
+            long[] rowIds = new long[BATCH_SIZE];
+            byte[][] records = new byte[BATCH_SIZE][];
+            int size;
+
+            @Override
+            public void begin(List<Schema.Column> columns) {
+                this.columns = columns;
+            }
+
+            @Override
+            public void accept(long rowId, Record record) {
+                rowIds[size] = rowId;
+                records[size++] = record.toBytes();
+                if (size == BATCH_SIZE) {
+                    send(false);
+                }
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return cancelled.get();
+            }
+
+            void send(boolean last) {
+                offer(queue, new Batch(shard, columns, rowIds, records, size, null, last), cancelled);
+                rowIds = new long[BATCH_SIZE];
+                records = new byte[BATCH_SIZE][];
+                size = 0;
+            }
+        };
+        try {
+            shards.get(shard).streamQuery(query, collector);
+            collector.send(true);
+        } catch (QueryCancelledException e) {
+            // another shard failed or the consumer gave up
+        } catch (IOException | RuntimeException e) {
+            try {
+                offer(queue, new Batch(shard, null, null, null, 0, e, true), cancelled);
+            } catch (QueryCancelledException ignored) {
+                // nobody is waiting for this shard any more
+            }
+        }
+    }
+
+    // waits for room in the queue unless the query has been cancelled
+    private static void offer(BlockingQueue<Batch> queue, Batch batch, AtomicBoolean cancelled) {
+        try {
+            while (!queue.offer(batch, 10, TimeUnit.MILLISECONDS)) {
+                if (cancelled.get()) {
+                    throw new QueryCancelledException();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QueryCancelledException();
+        }
+    }
+
+    private <V> V await(Future<V> future, int shard) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for shards");
+        } catch (ExecutionException e) {
+            throw shardFailure(shard, e.getCause());
+        }
+    }
+
+    private IOException shardFailure(int shard, Throwable cause) {
+        if (cause instanceof RuntimeException runtime) {
+            throw new ShardQueryException(databaseFilePaths.get(shard) + ": " + runtime.getMessage(), runtime);
+        }
+        return new IOException(databaseFilePaths.get(shard) + ": " + cause.getMessage(), cause);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeShards();
+    }
+
+    private void closeShards() throws IOException {
+        IOException failure = null;
+        for (var shard : shards) {
+            try {
+                shard.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
+
+class ShardSchemaException extends RuntimeException {
+    public ShardSchemaException(String message) {
+        super(message);
+    }
+}
+
+class ShardQueryException extends RuntimeException {
+    public ShardQueryException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
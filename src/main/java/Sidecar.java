@@ -0,0 +1,59 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+// Framing of the files kept next to a database, <db>.zonemap and
+// <db>.bloom: a magic number and format version, then the data version and
+// page size the contents were built at, then the contents. A sidecar only
+// describes the data while that version is current.
+public class Sidecar {
+    interface Contents<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    // null when there is no sidecar, it is cut short, of another format or
+    // built against another version of the data
+    static <T> T read(Path path, int magic, int format, DB.DataVersion current, int pageSize,
+                      Contents<T> contents) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != magic || in.readInt() != format) {
+                return null;
+            }
+            var version = new DB.DataVersion(in.readInt(), in.readLong(), in.readLong(), in.readLong());
+            if (!version.equals(current) || in.readInt() != pageSize) {
+                return null;
+            }
+            return contents.read(in);
+        } catch (NoSuchFileException | EOFException e) {
+            return null;
+        }
+    }
+
+    // written to a temporary file first so readers never see half of it
+    static void write(Path path, int magic, int format, DB.DataVersion version, int pageSize,
+                      Writer contents) throws IOException {
+        var temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(magic);
+            out.writeInt(format);
+            out.writeInt(version.changeCounter());
+            out.writeLong(version.fileModified());
+            out.writeLong(version.walSalt());
+            out.writeLong(version.walCommittedOffset());
+            out.writeInt(pageSize);
+            contents.write(out);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
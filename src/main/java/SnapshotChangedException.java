@@ -0,0 +1,7 @@
+// a query read pages while another connection committed or checkpointed,
+// so its rows may mix two versions of the data
+class SnapshotChangedException extends RuntimeException {
+    public SnapshotChangedException(Throwable cause) {
+        super("database changed while the query ran", cause);
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Row counts and key selectivity of a table and its indexes. ANALYZE leaves
+// them in sqlite_stat1 (and sqlite_stat4 with SQLITE_ENABLE_STAT4); without
+// those the planner estimates them by probing random root-to-leaf paths.
+public class TableStatistics {
+    public enum Source { STAT1, STAT4, SAMPLED }
+
+    public record Estimate(double rows, Source source) {}
+
+    QueryPlan.TreeEstimate tree;
+    long rows;
+    Source source = Source.SAMPLED;
+    final Map<String, IndexStatistics> indexes = new HashMap<>();
+
+    public static class IndexStatistics {
+        final Schema.Index index;
+        QueryPlan.TreeEstimate tree;
+        long entries = -1;
+        // average number of rows sharing one value of the first column, from
+        // sqlite_stat1; negative when unknown
+        double rowsPerKey = -1;
+        // sqlite_stat4 samples and the number of rows equal to each sample
+        // in its first column
+        final List<Record> samples = new ArrayList<>();
+        final List<Long> sampleRows = new ArrayList<>();
+
+        IndexStatistics(Schema.Index index) {
+            this.index = index;
+        }
+
+        // null when neither stat4 nor stat1 know about the key
+        Estimate estimate(byte[] expectedText) {
+            for (int i = 0; i < samples.size(); ++i) {
+                if (samples.get(i).compareText(expectedText, 0) == 0) {
+                    return new Estimate(sampleRows.get(i), Source.STAT4);
+                }
+            }
+            if (rowsPerKey >= 0) {
+                return new Estimate(rowsPerKey, Source.STAT1);
+            }
+            return null;
+        }
+    }
+
+    // the stat column holds the number of rows followed by the average
+    // number of rows per distinct prefix of the indexed columns, then
+    // optional keywords such as "unordered" or "sz=N"
+    static long[] parseStat1(String stat) {
+        var parts = stat.trim().split("\\s+");
+        var numbers = new ArrayList<Long>();
+        for (var part : parts) {
+            if (part.isEmpty() || !Character.isDigit(part.charAt(0))) {
+                break;
+            }
+            numbers.add(Long.parseLong(part));
+        }
+        long[] result = new long[numbers.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = numbers.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,123 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Decodes text values in the database text encoding (header offset 56).
+// With dictionaries enabled each column remembers the strings it already
+// built, keyed by their raw bytes, so low-cardinality columns hand out the
+// same String instance instead of decoding every row again.
+public class TextDecoder {
+    static final TextDecoder UTF_8 = new TextDecoder(StandardCharsets.UTF_8, false);
+
+    final Charset charset;
+    final boolean utf8;
+    private StringDictionary[] dictionaries;
+
+    public TextDecoder(Charset charset, boolean dictionaryEnabled) {
+        this.charset = charset;
+        this.utf8 = StandardCharsets.UTF_8.equals(charset);
+        if (dictionaryEnabled) {
+            this.dictionaries = new StringDictionary[8];
+        }
+    }
+
+    public static Charset charsetFor(int textEncoding) {
+        return switch (textEncoding) {
+            case 0, 1 -> StandardCharsets.UTF_8; // 0 on a freshly created file
+            case 2 -> StandardCharsets.UTF_16LE;
+            case 3 -> StandardCharsets.UTF_16BE;
+            default -> throw new IllegalArgumentException(
+                    "Unknown text encoding: " + textEncoding);
+        };
+    }
+
+    public Charset getCharset() { return charset; }
+    public boolean isUtf8() { return utf8; }
+
+    public byte[] encode(String value) {
+        return value.getBytes(charset);
+    }
+
+    String decode(ByteBuffer buffer, int offset, int length, int column) {
+        if (dictionaries == null || length > StringDictionary.MAX_KEY_LENGTH) {
+            return newString(buffer, offset, length);
+        }
+        if (column >= dictionaries.length) {
+            dictionaries = Arrays.copyOf(dictionaries,
+                    Math.max(column + 1, dictionaries.length * 2));
+        }
+        var dictionary = dictionaries[column];
+        if (dictionary == null) {
+            dictionary = dictionaries[column] = new StringDictionary();
+        }
+        return dictionary.get(this, buffer, offset, length);
+    }
+
+    String newString(ByteBuffer buffer, int offset, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset,
+                    length, charset);
+        }
+        byte[] contents = new byte[length];
+        buffer.get(offset, contents);
+        return new String(contents, charset);
+    }
+
+    // open addressing table from raw bytes to the decoded String, gives up on
+    // a column once it has seen more distinct values than it is meant for
+    static class StringDictionary {
+        static final int MAX_ENTRIES = 1024;
+        static final int MAX_KEY_LENGTH = 256;
+        private static final int CAPACITY = MAX_ENTRIES * 2;
+
+        private final byte[][] keys = new byte[CAPACITY][];
+        private final String[] values = new String[CAPACITY];
+        private int size;
+        private boolean saturated;
+
+        String get(TextDecoder decoder, ByteBuffer buffer, int offset, int length) {
+            if (saturated) {
+                return decoder.newString(buffer, offset, length);
+            }
+            int slot = hash(buffer, offset, length) & (CAPACITY - 1);
+            while (keys[slot] != null) {
+                if (matches(keys[slot], buffer, offset, length)) {
+                    return values[slot];
+                }
+                slot = (slot + 1) & (CAPACITY - 1);
+            }
+            String value = decoder.newString(buffer, offset, length);
+            if (size == MAX_ENTRIES) {
+                saturated = true;
+                return value;
+            }
+            byte[] key = new byte[length];
+            buffer.get(offset, key);
+            keys[slot] = key;
+            values[slot] = value;
+            size++;
+            return value;
+        }
+
+        private static int hash(ByteBuffer buffer, int offset, int length) {
+            int h = length;
+            for (int i = offset; i < offset + length; ++i) {
+                h = 31 * h + buffer.get(i);
+            }
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean matches(byte[] key, ByteBuffer buffer, int offset, int length) {
+            if (key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; ++i) {
+                if (key[i] != buffer.get(offset + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
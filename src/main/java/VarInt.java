@@ -1 +1,106 @@
-public record VarInt(int bytesRead, long value) {}
\ No newline at end of file
+import java.nio.ByteBuffer;
+
+// SQLite varints are big-endian base-128, one to nine bytes long. The first
+// eight bytes carry seven bits each and a ninth byte carries all eight.
+// Decoding works on the buffer position as a cursor so no object is created
+// per varint; the length is the distance the position moved.
+public final class VarInt {
+    static final int MAX_LENGTH = 9;
+
+    private VarInt() {}
+
+    public static long read(ByteBuffer buffer) {
+        int pos = buffer.position();
+        byte b0 = buffer.get(pos);
+        // most varints in a record are one byte (small serial types, header
+        // sizes) and most rowids and payload sizes fit in two
+        if (b0 >= 0) {
+            buffer.position(pos + 1);
+            return b0;
+        }
+        byte b1 = buffer.get(pos + 1);
+        if (b1 >= 0) {
+            buffer.position(pos + 2);
+            return ((b0 & 0x7f) << 7) | b1;
+        }
+        return readSlow(buffer, pos);
+    }
+
+    private static long readSlow(ByteBuffer buffer, int pos) {
+        long result = 0L;
+        for (int i = 0; i < MAX_LENGTH - 1; ++i) {
+            byte b = buffer.get(pos + i);
+            result = (result << 7) | (b & 0x7f);
+            if (b >= 0) {
+                buffer.position(pos + i + 1);
+                return result;
+            }
+        }
+        byte last = buffer.get(pos + MAX_LENGTH - 1);
+        buffer.position(pos + MAX_LENGTH);
+        return (result << 8) | (last & 0xff);
+    }
+
+    // the same for a varint at an offset of an array, for code that walks
+    // raw page bytes
+    public static long read(byte[] buffer, int offset) {
+        long result = 0L;
+        for (int i = 0; i < MAX_LENGTH - 1; ++i) {
+            byte b = buffer[offset + i];
+            result = (result << 7) | (b & 0x7f);
+            if (b >= 0) {
+                return result;
+            }
+        }
+        return (result << 8) | (buffer[offset + MAX_LENGTH - 1] & 0xff);
+    }
+
+    public static int length(byte[] buffer, int offset) {
+        for (int i = 0; i < MAX_LENGTH - 1; ++i) {
+            if (buffer[offset + i] >= 0) {
+                return i + 1;
+            }
+        }
+        return MAX_LENGTH;
+    }
+
+    public static int sizeOf(long value) {
+        if ((value & ~0x7fL) == 0) {
+            return 1;
+        }
+        if ((value & 0xff00000000000000L) != 0) {
+            return MAX_LENGTH;
+        }
+        int size = 1;
+        for (long v = value >>> 7; v != 0; v >>>= 7) {
+            size++;
+        }
+        return size;
+    }
+
+    // mirror of read, writes at the buffer position and advances it
+    public static void write(ByteBuffer buffer, long value) {
+        if ((value & ~0x7fL) == 0) {
+            buffer.put((byte) value);
+            return;
+        }
+        if ((value & ~0x3fffL) == 0) {
+            buffer.put((byte) (0x80 | (value >>> 7)));
+            buffer.put((byte) (value & 0x7f));
+            return;
+        }
+        if ((value & 0xff00000000000000L) != 0) {
+            // nine bytes: eight 7-bit groups, then the low byte whole
+            for (int shift = 57; shift >= 8; shift -= 7) {
+                buffer.put((byte) (0x80 | ((value >>> shift) & 0x7f)));
+            }
+            buffer.put((byte) value);
+            return;
+        }
+        int size = sizeOf(value);
+        for (int i = size - 1; i > 0; --i) {
+            buffer.put((byte) (0x80 | ((value >>> (7 * i)) & 0x7f)));
+        }
+        buffer.put((byte) (value & 0x7f));
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+
+// Serves pages of a database in WAL mode from the -wal file. Only frames up
+// to the last valid commit frame are visible, and refresh() scans only the
+// frames appended since the last call. No read mark is taken in the -shm
+// file, so nothing stops a checkpoint from copying newer frames into the
+// database file or restarting the log while a query runs; DB checks with
+// changedSinceRefresh() afterwards and runs the query again.
+public class WalIndex {
+    static final int WAL_HEADER_SIZE = 32;
+    static final int FRAME_HEADER_SIZE = 24;
+    static final int MAGIC_LITTLE_ENDIAN = 0x377f0682;
+    static final int MAGIC_BIG_ENDIAN = 0x377f0683;
+
+    final String walPath;
+    final int pageSize;
+    RandomAccessFile wal;
+
+    // identity of the log being followed, a checkpoint that restarts the log
+    // changes the salts
+    int salt1;
+    int salt2;
+    int checkpointSequence;
+    boolean bigEndianChecksum;
+
+    // page number -> offset of the page image in the -wal file
+    volatile Map<Integer, Long> committedFrames = Map.of();
+    int databaseSizeInPages;
+    long committedOffset;
+    int checksum1;
+    int checksum2;
+
+    public WalIndex(String databaseFilePath, int pageSize) {
+        this.walPath = databaseFilePath + "-wal";
+        this.pageSize = pageSize;
+    }
+
+    public synchronized void refresh() throws IOException {
+        // reopen every time, a checkpoint may have deleted and recreated the log
+        close();
+        if (!new File(walPath).exists()) {
+            reset();
+            return;
+        }
+        wal = new RandomAccessFile(walPath, "r");
+        long length = wal.length();
+        if (length < WAL_HEADER_SIZE) {
+            reset();
+            return;
+        }
+        byte[] headerBytes = new byte[WAL_HEADER_SIZE];
+        wal.seek(0);
+        wal.readFully(headerBytes);
+        ByteBuffer header = ByteBuffer.wrap(headerBytes).order(ByteOrder.BIG_ENDIAN);
+        int magic = header.getInt(0);
+        int walPageSize = header.getInt(8);
+        int sequence = header.getInt(12);
+        int headerSalt1 = header.getInt(16);
+        int headerSalt2 = header.getInt(20);
+        if (committedOffset == 0 || headerSalt1 != salt1 ||
+                headerSalt2 != salt2 || sequence != checkpointSequence) {
+            reset();
+            if ((magic != MAGIC_LITTLE_ENDIAN && magic != MAGIC_BIG_ENDIAN) ||
+                    walPageSize != pageSize) {
+                return;
+            }
+            bigEndianChecksum = magic == MAGIC_BIG_ENDIAN;
+            long[] checksum = checksum(headerBytes, 0, 24, 0, 0);
+            if ((int) checksum[0] != header.getInt(24) ||
+                    (int) checksum[1] != header.getInt(28)) {
+                return;
+            }
+            salt1 = headerSalt1;
+            salt2 = headerSalt2;
+            checkpointSequence = sequence;
+            checksum1 = (int) checksum[0];
+            checksum2 = (int) checksum[1];
+            committedOffset = WAL_HEADER_SIZE;
+        }
+        scanFrames(length);
+    }
+
+    // frames after the last commit are rescanned on every refresh, the
+    // checksum chain is only advanced past committed transactions
+    private void scanFrames(long length) throws IOException {
+        int frameSize = FRAME_HEADER_SIZE + pageSize;
+        byte[] frame = new byte[frameSize];
+        ByteBuffer frameBuffer = ByteBuffer.wrap(frame).order(ByteOrder.BIG_ENDIAN);
+        Map<Integer, Long> pending = new HashMap<>();
+        Map<Integer, Long> committed = null;
+        long s1 = checksum1;
+        long s2 = checksum2;
+        for (long offset = committedOffset; offset + frameSize <= length; offset += frameSize) {
+            wal.seek(offset);
+            wal.readFully(frame);
+            int pageNumber = frameBuffer.getInt(0);
+            int commitSize = frameBuffer.getInt(4);
+            if (frameBuffer.getInt(8) != salt1 || frameBuffer.getInt(12) != salt2) {
+                break;
+            }
+            long[] checksum = checksum(frame, 0, 8, s1, s2);
+            checksum = checksum(frame, FRAME_HEADER_SIZE, pageSize, checksum[0], checksum[1]);
+            if ((int) checksum[0] != frameBuffer.getInt(16) ||
+                    (int) checksum[1] != frameBuffer.getInt(20)) {
+                break;
+            }
+            s1 = checksum[0];
+            s2 = checksum[1];
+            pending.put(pageNumber, offset + FRAME_HEADER_SIZE);
+            if (commitSize != 0) {
+                if (committed == null) {
+                    committed = new HashMap<>(committedFrames);
+                }
+                committed.putAll(pending);
+                pending.clear();
+                databaseSizeInPages = commitSize;
+                committedOffset = offset + frameSize;
+                checksum1 = (int) s1;
+                checksum2 = (int) s2;
+            }
+        }
+        if (committed != null) {
+            committedFrames = committed;
+        }
+    }
+
+    private void reset() {
+        committedFrames = Map.of();
+        databaseSizeInPages = 0;
+        committedOffset = 0;
+        checksum1 = 0;
+        checksum2 = 0;
+    }
+
+    // the WAL checksum runs over pairs of 32-bit words in the byte order
+    // named by the magic number
+    private long[] checksum(byte[] data, int offset, int length, long s1, long s2) {
+        ByteBuffer words = ByteBuffer.wrap(data, offset, length)
+                .order(bigEndianChecksum ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+        int a = (int) s1;
+        int b = (int) s2;
+        for (int i = offset; i < offset + length; i += 8) {
+            a += words.getInt(i) + b;
+            b += words.getInt(i + 4) + a;
+        }
+        return new long[] {a, b};
+    }
+
+    // null when the page is not in the committed part of the log
+    public BtreePage readPage(int pageNumber) throws IOException {
+        byte[] pageContents = readPageContents(pageNumber);
+        if (pageContents == null) {
+            return null;
+        }
+        QueryStats.pageRead(pageNumber, pageSize);
+        return BtreePage.fromContents(pageContents, pageNumber);
+    }
+
+    // true when a checkpoint has restarted the log since the last refresh,
+    // so frames read from it may belong to a later transaction
+    public synchronized boolean changedSinceRefresh() throws IOException {
+        if (committedOffset == 0) {
+            return false;
+        }
+        try (var current = new RandomAccessFile(walPath, "r")) {
+            if (current.length() < WAL_HEADER_SIZE) {
+                return true;
+            }
+            current.seek(16);
+            return current.readInt() != salt1 || current.readInt() != salt2;
+        } catch (FileNotFoundException e) {
+            return true;
+        }
+    }
+
+    // the raw page image, without parsing it as a B-tree page
+    public synchronized byte[] readPageContents(int pageNumber) throws IOException {
+        Long offset = committedFrames.get(pageNumber);
+        if (offset == null) {
+            return null;
+        }
+        byte[] pageContents = new byte[pageSize];
+        wal.seek(offset);
+        wal.readFully(pageContents);
+        return pageContents;
+    }
+
+    public int getDatabaseSizeInPages() { return databaseSizeInPages; }
+    // changes whenever a transaction commits or a checkpoint restarts the log
+    public long getCommittedOffset() { return committedOffset; }
+    public long getSalt() { return ((long) salt1 << 32) | (salt2 & 0xFFFFFFFFL); }
+
+    public synchronized void close() throws IOException {
+        if (wal != null) {
+            wal.close();
+            wal = null;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Smallest and largest value and null count of chosen columns for every
+// page of a table B-tree, interior pages covering their whole subtree. One
+// scan builds it into a sidecar next to the database file, <db>.zonemap;
+// scans filtering on one of the columns then skip subtrees whose range
+// cannot match, which on columns that grow with the rowid leaves a time
+// window to a handful of pages. The sidecar is only used while the data
+// version it was built at is current.
+public class ZoneMap {
+    static final String SUFFIX = ".zonemap";
+    private static final int MAGIC = 0x5a4d4150; // "ZMAP"
+    private static final int FORMAT = 1;
+
+    final DB.DataVersion version;
+    final int pageSize;
+    final Map<String, TableZones> tables = new LinkedHashMap<>();
+
+    // bounds are one column records so they compare like the column itself
+    public static class Zone {
+        long rows;
+        long nulls;
+        byte[] min;
+        byte[] max;
+        private Record minRecord;
+        private Record maxRecord;
+
+        void add(byte[] value, boolean isNull) {
+            rows++;
+            if (isNull) {
+                nulls++;
+            } else {
+                widen(value);
+            }
+        }
+
+        void add(Zone child) {
+            rows += child.rows;
+            nulls += child.nulls;
+            if (child.min != null) {
+                widen(child.min);
+                widen(child.max);
+            }
+        }
+
+        private void widen(byte[] value) {
+            if (min == null || Record.compareRecords(value, 0, min, 0) < 0) {
+                min = value;
+            }
+            if (max == null || Record.compareRecords(value, 0, max, 0) > 0) {
+                max = value;
+            }
+        }
+
+        // NULL matches none of =, < and >
+        boolean mayMatch(RowPredicate predicate) {
+            if (min == null) {
+                return false;
+            }
+            if (minRecord == null) {
+                minRecord = Record.readRecord(ByteBuffer.wrap(min).order(ByteOrder.BIG_ENDIAN));
+                maxRecord = Record.readRecord(ByteBuffer.wrap(max).order(ByteOrder.BIG_ENDIAN));
+            }
+            // = on a numeric literal also matches text spelling the number,
+            // which sorts outside the numeric range
+            if (!predicate.comparesAsText() && maxRecord.getSerialType(0) >= 12) {
+                return true;
+            }
+            int belowMin = predicate.compareTo(minRecord, 0);
+            int aboveMax = predicate.compareTo(maxRecord, 0);
+            return switch (predicate.getOp()) {
+                case "=" -> belowMin >= 0 && aboveMax <= 0;
+                case "<" -> belowMin > 0;
+                case ">" -> aboveMax < 0;
+                default -> true;
+            };
+        }
+
+        public long getRows() { return rows; }
+        public long getNulls() { return nulls; }
+    }
+
+    public static class TableZones {
+        final String table;
+        final int rootPage;
+        final List<String> columns;
+        // one zone per column, by page number
+        final Map<Integer, Zone[]> pages = new HashMap<>();
+
+        TableZones(String table, int rootPage, List<String> columns) {
+            this.table = table;
+            this.rootPage = rootPage;
+            this.columns = List.copyOf(columns);
+        }
+
+        public boolean covers(String column) {
+            return columns.contains(column);
+        }
+
+        // false only when no row under the page can satisfy the predicate;
+        // pages the map does not know about are read
+        boolean mayMatch(int pageNumber, RowPredicate predicate) {
+            int slot = columns.indexOf(predicate.getSchema().columnList
+                    .get(predicate.getColIndex()).name());
+            var zones = pages.get(pageNumber);
+            return slot < 0 || zones == null || zones[slot].mayMatch(predicate);
+        }
+
+        // the pages a scan with the predicate reads: a child's range lies
+        // within its parent's, so a page that may match has a parent that may
+        long matchingPages(RowPredicate predicate) {
+            long matching = 0;
+            for (var pageNumber : pages.keySet()) {
+                if (mayMatch(pageNumber, predicate)) {
+                    matching++;
+                }
+            }
+            return matching;
+        }
+
+        public Zone getZone(int pageNumber, String column) {
+            var zones = pages.get(pageNumber);
+            int slot = columns.indexOf(column);
+            return zones == null || slot < 0 ? null : zones[slot];
+        }
+
+        public int getPageCount() { return pages.size(); }
+        public List<String> getColumns() { return columns; }
+    }
+
+    ZoneMap(DB.DataVersion version, int pageSize) {
+        this.version = version;
+        this.pageSize = pageSize;
+    }
+
+    public TableZones table(String table) {
+        return tables.get(table);
+    }
+
+    // null when there is no sidecar, it is unreadable or it was built
+    // against another version of the data
+    static ZoneMap read(Path path, DB.DataVersion current, int pageSize) throws IOException {
+        return Sidecar.read(path, MAGIC, FORMAT, current, pageSize, in -> {
+            var zoneMap = new ZoneMap(current, pageSize);
+            int tableCount = in.readInt();
+            for (int t = 0; t < tableCount; ++t) {
+                var table = in.readUTF();
+                int rootPage = in.readInt();
+                int columnCount = in.readInt();
+                var columns = new ArrayList<String>(columnCount);
+                for (int c = 0; c < columnCount; ++c) {
+                    columns.add(in.readUTF());
+                }
+                var tableZones = new TableZones(table, rootPage, columns);
+                int pageCount = in.readInt();
+                for (int p = 0; p < pageCount; ++p) {
+                    int pageNumber = in.readInt();
+                    var zones = new Zone[columnCount];
+                    for (int c = 0; c < columnCount; ++c) {
+                        zones[c] = new Zone();
+                        zones[c].rows = in.readLong();
+                        zones[c].nulls = in.readLong();
+                        zones[c].min = readBound(in);
+                        zones[c].max = readBound(in);
+                    }
+                    tableZones.pages.put(pageNumber, zones);
+                }
+                zoneMap.tables.put(table, tableZones);
+            }
+            return zoneMap;
+        });
+    }
+
+    void write(Path path) throws IOException {
+        Sidecar.write(path, MAGIC, FORMAT, version, pageSize, out -> {
+            out.writeInt(tables.size());
+            for (var tableZones : tables.values()) {
+                out.writeUTF(tableZones.table);
+                out.writeInt(tableZones.rootPage);
+                out.writeInt(tableZones.columns.size());
+                for (var column : tableZones.columns) {
+                    out.writeUTF(column);
+                }
+                out.writeInt(tableZones.pages.size());
+                for (var page : tableZones.pages.entrySet()) {
+                    out.writeInt(page.getKey());
+                    for (var zone : page.getValue()) {
+                        out.writeLong(zone.rows);
+                        out.writeLong(zone.nulls);
+                        writeBound(out, zone.min);
+                        writeBound(out, zone.max);
+                    }
+                }
+            }
+        });
+    }
+
+    private static byte[] readBound(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bound = new byte[length];
+        in.readFully(bound);
+        return bound;
+    }
+
+    private static void writeBound(DataOutputStream out, byte[] bound) throws IOException {
+        if (bound == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bound.length);
+        out.write(bound);
+    }
+
+    public DB.DataVersion getVersion() { return version; }
+}